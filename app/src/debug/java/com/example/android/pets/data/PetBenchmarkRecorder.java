@@ -0,0 +1,83 @@
+package com.example.android.pets.data;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Summarises benchmark measurements and appends them to a results file, one JSON object per
+ * line, so they can be compared across commits. Throughput and p99 latency are part of every
+ * line.
+ */
+final class PetBenchmarkRecorder {
+
+    private static final String LOG_TAG = PetBenchmarkRecorder.class.getSimpleName();
+
+    private final File mResultsFile;
+    private final String mLabel;
+
+    /**
+     * @param label free-form tag stored with every result, typically the commit being
+     *              measured, or null
+     */
+    PetBenchmarkRecorder(File resultsFile, String label) {
+        mResultsFile = resultsFile;
+        mLabel = label;
+    }
+
+    /**
+     * Append one measurement, summarised from the given per-operation latencies in
+     * nanoseconds, to the results file and the log.
+     */
+    void record(String suite, String benchmark, JSONObject params, long[] latencies)
+            throws JSONException, IOException {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long latency : sorted) {
+            total += latency;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("suite", suite);
+        result.put("benchmark", benchmark);
+        result.put("label", mLabel == null ? JSONObject.NULL : mLabel);
+        result.put("params", params);
+        result.put("device", Build.MODEL);
+        result.put("sdk", Build.VERSION.SDK_INT);
+        result.put("timestamp", System.currentTimeMillis());
+        result.put("operations", sorted.length);
+        result.put("ops_per_sec", total == 0 ? 0 : sorted.length * 1e9 / total);
+        result.put("mean_us", sorted.length == 0 ? 0 : total / sorted.length / 1000);
+        result.put("p50_us", percentile(sorted, 50) / 1000);
+        result.put("p99_us", percentile(sorted, 99) / 1000);
+        result.put("max_us", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000);
+
+        String line = result.toString();
+        Log.i(LOG_TAG, line);
+
+        Writer writer = new FileWriter(mResultsFile, true);
+        try {
+            writer.write(line);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
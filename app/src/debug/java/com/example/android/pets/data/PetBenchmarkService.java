@@ -0,0 +1,263 @@
+package com.example.android.pets.data;
+
+import android.app.IntentService;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.PetApplication;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Debug-only service that benchmarks the data layer on a device or emulator. Start a suite with
+ *
+ * <pre>
+ * adb shell am startservice -n com.example.android.pets/.data.PetBenchmarkService \
+ *         -e suite provider -e sizes 1000,10000,100000,1000000 -e label $(git rev-parse --short HEAD)
+ * </pre>
+ *
+ * Suites:
+ * <ul>
+ * <li>provider: {@link PetProviderBenchmark} for each table size in the sizes extra. The same
+ * suite also runs on the JVM, without a device, see PetProviderBenchmarkTest</li>
+ * <li>wal: catalog page read latency under a sustained write load, with and without
+ * write-ahead logging, at the table size in the rows extra</li>
+ * <li>group_commit: insert latency and overall throughput of as many concurrent writers as
+ * each value of the writers extra, each inserting through the provider, with group commit off
+ * and then on</li>
+ * </ul>
+ *
+ * Starting the service with only the boolean warm_up extra turns the startup warm-up of
+ * {@link PetApplication} on or off from the next process start, for
+ * scripts/startup_benchmark.sh.
+ * <p>
+ * Every measurement is appended by {@link PetBenchmarkRecorder} to benchmarks.jsonl in the
+ * app's external files directory, tagged with the label extra, so results can be pulled with adb
+ * and compared across commits.
+ */
+public class PetBenchmarkService extends IntentService {
+
+    private static final String LOG_TAG = PetBenchmarkService.class.getSimpleName();
+
+    /**
+     * Name of the suite to run
+     */
+    public static final String EXTRA_SUITE = "suite";
+
+    /**
+     * Number of pets in the table being measured
+     */
+    public static final String EXTRA_ROWS = "rows";
+
+    /**
+     * Comma separated table sizes for the provider suite
+     */
+    public static final String EXTRA_SIZES = "sizes";
+
+    /**
+     * Comma separated numbers of concurrent writers for the group_commit suite
+     */
+    public static final String EXTRA_WRITERS = "writers";
+
+    /**
+     * Free-form tag stored with every result, typically the commit being measured
+     */
+    public static final String EXTRA_LABEL = "label";
+
+    /**
+     * Whether {@link PetApplication} warms the catalog up from the next process start on
+     */
+    public static final String EXTRA_WARM_UP = "warm_up";
+
+    private static final String SUITE_WAL = "wal";
+    private static final String SUITE_GROUP_COMMIT = "group_commit";
+
+    private static final String DEFAULT_WRITERS = "1,2,4,8,16";
+    private static final int WRITES_PER_WRITER = 200;
+
+    private static final String RESULTS_FILE = "benchmarks.jsonl";
+
+    private static final int DEFAULT_ROWS = 10000;
+    private static final int READ_ITERATIONS = 500;
+    private static final int CATALOG_PAGE_SIZE = 50;
+
+    private PetBenchmarkRecorder mRecorder;
+
+    public PetBenchmarkService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent.hasExtra(EXTRA_WARM_UP)) {
+            boolean enabled = intent.getBooleanExtra(EXTRA_WARM_UP, true);
+            PetApplication.setWarmUpEnabled(this, enabled);
+            Log.i(LOG_TAG, "Startup warm-up " + (enabled ? "on" : "off"));
+            return;
+        }
+
+        String suite = intent.getStringExtra(EXTRA_SUITE);
+        int rows = intent.getIntExtra(EXTRA_ROWS, DEFAULT_ROWS);
+        String sizes = intent.getStringExtra(EXTRA_SIZES);
+        String writers = intent.getStringExtra(EXTRA_WRITERS);
+        mRecorder = new PetBenchmarkRecorder(new File(getExternalFilesDir(null), RESULTS_FILE),
+                intent.getStringExtra(EXTRA_LABEL));
+
+        try {
+            if (PetProviderBenchmark.SUITE.equals(suite)) {
+                new PetProviderBenchmark(this, mRecorder)
+                        .run(sizes == null ? PetProviderBenchmark.DEFAULT_SIZES : sizes);
+            } else if (SUITE_WAL.equals(suite)) {
+                runWalSuite(rows);
+            } else if (SUITE_GROUP_COMMIT.equals(suite)) {
+                for (String count : (writers == null ? DEFAULT_WRITERS : writers).split(",")) {
+                    runGroupCommitSuite(Integer.parseInt(count.trim()));
+                }
+            } else {
+                Log.e(LOG_TAG, "Unknown benchmark suite " + suite);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Benchmark suite " + suite + " failed", e);
+        }
+    }
+
+    /**
+     * Measure the latency of the catalog's first page query while another thread keeps
+     * writing, once with write-ahead logging and once with the rollback journal.
+     */
+    private void runWalSuite(int rows) throws Exception {
+        for (boolean wal : new boolean[]{true, false}) {
+            String name = wal ? "benchmark_wal.db" : "benchmark_journal.db";
+            deleteDatabase(name);
+            final PetDbHelper helper = new PetDbHelper(this, name, wal, 1000);
+            insertPets(helper.getWritableDatabase(), rows);
+
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SQLiteDatabase db = helper.getWritableDatabase();
+                    while (writing.get()) {
+                        insertPets(db, 10);
+                    }
+                }
+            }, "benchmark-writer");
+            writer.start();
+
+            SQLiteDatabase db = helper.getReadableDatabase();
+            long[] latencies = new long[READ_ITERATIONS];
+            for (int i = 0; i < READ_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                Cursor cursor = db.query(PetEntry.TABLE_NAME, PetProviderBenchmark.CATALOG_PROJECTION, null, null,
+                        null, null, PetEntry.COLUMN_PET_NAME + ", " + PetEntry._ID,
+                        String.valueOf(CATALOG_PAGE_SIZE));
+                cursor.getCount();
+                cursor.close();
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            writing.set(false);
+            writer.join();
+            helper.close();
+            deleteDatabase(name);
+
+            JSONObject params = new JSONObject();
+            params.put("journal_mode", wal ? "wal" : "delete");
+            params.put("rows", rows);
+            mRecorder.record(SUITE_WAL, "catalog_page_read_under_write", params, latencies);
+        }
+    }
+
+    /**
+     * Measure inserts made through {@link PetProvider#insert(Uri, ContentValues)} by the given
+     * number of threads at once, first with each thread committing its own rows and then with
+     * group commit. Besides the per-insert latencies, the wall_ops_per_sec parameter holds the
+     * rows inserted per second by all the writers together.
+     */
+    private void runGroupCommitSuite(int writers) throws Exception {
+        for (boolean groupCommit : new boolean[]{false, true}) {
+            String name = "benchmark_group_commit.db";
+            deleteDatabase(name);
+            final PetProvider provider = new PetProvider(name, 0);
+            provider.attachInfo(this, null);
+
+            try {
+                provider.call(PetContract.METHOD_SET_GROUP_COMMIT, String.valueOf(groupCommit), null);
+
+                final long[] latencies = new long[writers * WRITES_PER_WRITER];
+                final CountDownLatch startGate = new CountDownLatch(1);
+                Thread[] threads = new Thread[writers];
+                for (int t = 0; t < writers; t++) {
+                    final int first = t * WRITES_PER_WRITER;
+                    threads[t] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                startGate.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            for (int i = first; i < first + WRITES_PER_WRITER; i++) {
+                                ContentValues values = PetProviderBenchmark.newPet(i);
+                                long start = System.nanoTime();
+                                provider.insert(PetEntry.CONTENT_URI, values);
+                                latencies[i] = System.nanoTime() - start;
+                            }
+                        }
+                    }, "benchmark-writer-" + t);
+                    threads[t].start();
+                }
+
+                long start = System.nanoTime();
+                startGate.countDown();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                long elapsed = System.nanoTime() - start;
+
+                JSONObject params = new JSONObject();
+                params.put("writers", writers);
+                params.put("group_commit", groupCommit);
+                params.put("wall_ops_per_sec", latencies.length * 1e9 / elapsed);
+                mRecorder.record(SUITE_GROUP_COMMIT, "concurrent_insert_pet", params, latencies);
+            } finally {
+                provider.shutdown();
+                deleteDatabase(name);
+            }
+        }
+    }
+
+    /**
+     * Insert the given number of generated pets in one transaction.
+     */
+    static void insertPets(SQLiteDatabase db, int count) {
+        SQLiteStatement statement = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN__PET_BREED + ", " +
+                PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT +
+                ") VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                statement.bindString(1, "Pet " + Integer.toHexString(i * 7919));
+                statement.bindString(2, "Breed " + (i % 97));
+                statement.bindLong(3, i % 3);
+                statement.bindLong(4, i % 60);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * The provider benchmark suite: insert and update, through content values and through
+ * {@link PetRecord}, PETS and PET_ID queries, similar pets lookups, delete-all and URI dispatch
+ * of {@link PetProvider}, on a database of its own. It only needs a Context, so the same suite
+ * runs on a device from {@link PetBenchmarkService} and on the JVM under Robolectric from
+ * PetProviderBenchmarkTest.
+ */
+final class PetProviderBenchmark {
+
+    static final String SUITE = "provider";
+
+    /**
+     * Table sizes the suite runs at when the caller doesn't say
+     */
+    static final String DEFAULT_SIZES = "1000,10000,100000,1000000";
+
+    private static final String DATABASE_NAME = "benchmark_provider.db";
+
+    private static final int WRITE_ITERATIONS = 1000;
+    private static final int READ_ITERATIONS = 500;
+    private static final int FULL_QUERY_ITERATIONS = 5;
+    private static final int DISPATCH_BATCHES = 1000;
+    private static final int DISPATCH_BATCH_SIZE = 100;
+    private static final int SEED_CHUNK_SIZE = 5000;
+    private static final int CATALOG_PAGE_SIZE = 50;
+
+    /**
+     * Times the table is filled again and emptied, so delete-all has a latency distribution
+     * rather than a single sample
+     */
+    private static final int DELETE_ALL_ITERATIONS = 10;
+
+    static final String[] CATALOG_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN__PET_BREED,
+    };
+
+    private final Context mContext;
+    private final PetBenchmarkRecorder mRecorder;
+
+    PetProviderBenchmark(Context context, PetBenchmarkRecorder recorder) {
+        mContext = context;
+        mRecorder = recorder;
+    }
+
+    /**
+     * Run the suite once for each of the given comma separated table sizes.
+     */
+    void run(String sizes) throws JSONException, IOException {
+        for (String size : sizes.split(",")) {
+            run(Integer.parseInt(size.trim()));
+        }
+    }
+
+    /**
+     * Measure each operation of {@link PetProvider} against a table holding the given number of
+     * pets. The provider runs on its own database with the query cache off, so the numbers are
+     * those of the data layer itself.
+     */
+    void run(int rows) throws JSONException, IOException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        PetProvider provider = new PetProvider(DATABASE_NAME, 0);
+        provider.attachInfo(mContext, null);
+
+        try {
+            seed(provider, rows);
+
+            JSONObject params = new JSONObject();
+            params.put("rows", rows);
+            Random random = new Random(rows);
+
+            long[] latencies = new long[WRITE_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                ContentValues values = newPet(rows + i);
+                long start = System.nanoTime();
+                provider.insert(PetEntry.CONTENT_URI, values);
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "insert_pet", params, latencies);
+
+            latencies = new long[WRITE_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + random.nextInt(rows));
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+                long start = System.nanoTime();
+                provider.update(uri, values, null, null);
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "update_pet", params, latencies);
+
+            // The same writes through the typed path, reusing one record for every call
+            PetRecord record = new PetRecord();
+            latencies = new long[WRITE_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                int n = rows + WRITE_ITERATIONS + i;
+                record.clear()
+                        .setName("Pet " + Integer.toHexString(n * 7919))
+                        .setBreed("Breed " + (n % 97))
+                        .setGender(n % 3)
+                        .setWeight(n % 60);
+                long start = System.nanoTime();
+                provider.insert(record);
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "insert_pet_record", params, latencies);
+
+            latencies = new long[WRITE_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                long id = 1 + random.nextInt(rows);
+                record.clear().setWeight(i % 60);
+                long start = System.nanoTime();
+                provider.update(id, record);
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "update_pet_record", params, latencies);
+
+            Uri pageUri = PetEntry.buildPageUri(PetEntry.COLUMN_PET_NAME, CATALOG_PAGE_SIZE);
+            latencies = new long[READ_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                long start = System.nanoTime();
+                readAll(provider.query(pageUri, CATALOG_PROJECTION, null, null, null));
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "query_pets_page", params, latencies);
+
+            latencies = new long[FULL_QUERY_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                long start = System.nanoTime();
+                readAll(provider.query(PetEntry.CONTENT_URI, CATALOG_PROJECTION, null, null, null));
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "query_pets_all", params, latencies);
+
+            latencies = new long[READ_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + random.nextInt(rows));
+                long start = System.nanoTime();
+                readAll(provider.query(uri, null, null, null, null));
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "query_pet_id", params, latencies);
+
+            // Every name shares the common "Pet" trigrams, so this shows whether the lookups
+            // really stay off them
+            latencies = new long[READ_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                Uri uri = PetEntry.buildSimilarUri("Pet " + Integer.toHexString(random.nextInt(rows) * 7919),
+                        "Breed " + (i % 97), 5);
+                long start = System.nanoTime();
+                readAll(provider.query(uri, null, null, null, null));
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "query_similar", params, latencies);
+
+            // A single dispatch is too quick to time on its own, so time batches and record the
+            // average of each batch as one operation.
+            Uri[] dispatchUris = {
+                    PetEntry.CONTENT_URI,
+                    ContentUris.withAppendedId(PetEntry.CONTENT_URI, 42),
+                    PetEntry.CONTENT_SEARCH_URI,
+                    PetContract.StatsEntry.CONTENT_BREEDS_URI,
+            };
+            latencies = new long[DISPATCH_BATCHES];
+            for (int i = 0; i < latencies.length; i++) {
+                long start = System.nanoTime();
+                for (int j = 0; j < DISPATCH_BATCH_SIZE; j++) {
+                    provider.getType(dispatchUris[j % dispatchUris.length]);
+                }
+                latencies[i] = (System.nanoTime() - start) / DISPATCH_BATCH_SIZE;
+            }
+            mRecorder.record(SUITE, "uri_dispatch", params, latencies);
+
+            latencies = new long[DELETE_ALL_ITERATIONS];
+            for (int i = 0; i < latencies.length; i++) {
+                if (i != 0) {
+                    seed(provider, rows);
+                }
+                long start = System.nanoTime();
+                provider.delete(PetEntry.CONTENT_URI, null, null);
+                latencies[i] = System.nanoTime() - start;
+            }
+            mRecorder.record(SUITE, "delete_all", params, latencies);
+        } finally {
+            provider.shutdown();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Fill the table with the given number of generated pets, a chunk per transaction.
+     */
+    private static void seed(PetProvider provider, int rows) {
+        for (int seeded = 0; seeded < rows; seeded += SEED_CHUNK_SIZE) {
+            ContentValues[] chunk = new ContentValues[Math.min(SEED_CHUNK_SIZE, rows - seeded)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = newPet(seeded + i);
+            }
+            provider.bulkInsert(PetEntry.CONTENT_URI, chunk);
+        }
+    }
+
+    static ContentValues newPet(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + Integer.toHexString(i * 7919));
+        values.put(PetEntry.COLUMN__PET_BREED, "Breed " + (i % 97));
+        values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+        return values;
+    }
+
+    /**
+     * Step through every row so the query has really been run, then close the cursor.
+     */
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
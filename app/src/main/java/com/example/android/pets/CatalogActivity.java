@@ -15,41 +15,127 @@
  */
 package com.example.android.pets;
 
+import android.app.ProgressDialog;
+import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.os.TraceCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>,
+        PetRecyclerAdapter.OnPetClickListener {
+
+    /**
+     * Number of pets fetched per page of the catalog list
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Menu item IDs of the sort order and filters the catalog opens with
+     */
+    private static final int DEFAULT_SORT = R.id.sort_name_ascending;
+    private static final int DEFAULT_GENDER_FILTER = R.id.filter_gender_all;
+    private static final int DEFAULT_WEIGHT_FILTER = R.id.filter_weight_all;
+
+    /**
+     * Lightest weights, in kg, of the medium and heavy weight filters. The filters' menu titles
+     * are built from them, so the labels always match the query.
+     */
+    private static final int MEDIUM_MIN_WEIGHT = 10;
+    private static final int HEAVY_MIN_WEIGHT = 30;
+
+    private static final String STATE_SORT = "sort";
+    private static final String STATE_GENDER_FILTER = "gender_filter";
+    private static final String STATE_WEIGHT_FILTER = "weight_filter";
+
+    private static final int REQUEST_IMPORT_FILE = 1;
+
+    private static final int TOKEN_INSERT_PET = 1;
+
+    /**
+     * Delete-all that is still running, kept across activity instances so a rotated catalog
+     * picks its progress back up and a second delete-all can't start alongside it
+     */
+    private static PurgeTask sPurgeTask;
 
     PetDbHelper mDbHelper;
-    PetCursorAdapter cursorAdapter;
+    PetRecyclerAdapter cursorAdapter;
+
+    /**
+     * Runs the writes started from the menu off the main thread
+     */
+    private AsyncQueryHandler mQueryHandler;
+
+    /**
+     * Shows the progress of the running delete-all, if any
+     */
+    private ProgressDialog mPurgeDialog;
+
+    /**
+     * Menu item IDs of the chosen sort order and filters
+     */
+    private int mSort = DEFAULT_SORT;
+    private int mGenderFilter = DEFAULT_GENDER_FILTER;
+    private int mWeightFilter = DEFAULT_WEIGHT_FILTER;
+
+    /**
+     * Whether the loader has delivered its first page yet
+     */
+    private boolean mFirstPageShown;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        TraceCompat.beginSection("CatalogActivity.onCreate");
+        try {
+            // Only a launch from the launcher shows the default first page straight away, so
+            // only then is it worth querying it while the layout inflates
+            Intent intent = getIntent();
+            if (savedInstanceState == null && Intent.ACTION_MAIN.equals(intent.getAction())
+                    && intent.hasCategory(Intent.CATEGORY_LAUNCHER)) {
+                PetApplication.startWarmUp(this);
+            }
+            setUpCatalog(savedInstanceState);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    private void setUpCatalog(Bundle savedInstanceState) {
         setContentView(R.layout.activity_catalog);
 
+        if (savedInstanceState != null) {
+            mSort = savedInstanceState.getInt(STATE_SORT, mSort);
+            mGenderFilter = savedInstanceState.getInt(STATE_GENDER_FILTER, mGenderFilter);
+            mWeightFilter = savedInstanceState.getInt(STATE_WEIGHT_FILTER, mWeightFilter);
+        }
+
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -64,9 +150,161 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // and pass the context, which is the current activity.
         mDbHelper = new PetDbHelper(this);
 
+        // The list starts out empty and is only ever filled from the loader's cursor, so the
+        // catalog is queried once, in the background.
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.list_view_pet);
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        cursorAdapter = new PetRecyclerAdapter(this, buildPageUri(), this);
+        recyclerView.setAdapter(cursorAdapter);
+
+        // RecyclerView has no empty view of its own, so show ours whenever the list is empty
+        final View emptyView = findViewById(R.id.empty_view);
+        cursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            private void updateEmptyView() {
+                emptyView.setVisibility(cursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            }
+        });
+
+        mQueryHandler = new AsyncQueryHandler(getContentResolver()) {
+            @Override
+            protected void onInsertComplete(int token, Object cookie, Uri uri) {
+                if (uri != null)
+                    Toast.makeText(CatalogActivity.this, "Pet saved" + uri, Toast.LENGTH_SHORT).show();
+                else
+                    Toast.makeText(CatalogActivity.this, "Error saving pet", Toast.LENGTH_SHORT).show();
+            }
+        };
+
+        if (sPurgeTask != null) {
+            sPurgeTask.attach(this);
+        }
+
         getSupportLoaderManager().initLoader(0, null, this);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_SORT, mSort);
+        outState.putInt(STATE_GENDER_FILTER, mGenderFilter);
+        outState.putInt(STATE_WEIGHT_FILTER, mWeightFilter);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (sPurgeTask != null) {
+            sPurgeTask.attach(null);
+        }
+        hidePurgeProgress();
+    }
+
+    /**
+     * Build the URI of the first catalog page for the chosen sort order and filters. The
+     * provider turns them into the query, so only the matching pets ever leave SQLite.
+     */
+    private Uri buildPageUri() {
+        return buildPageUri(mSort, mGenderFilter, mWeightFilter);
+    }
+
+    /**
+     * Build the URI of the first catalog page the catalog opens with, before the user picks
+     * another sort order or filter. See {@link PetApplication}, which prefetches it on launch.
+     */
+    static Uri buildDefaultPageUri() {
+        return buildPageUri(DEFAULT_SORT, DEFAULT_GENDER_FILTER, DEFAULT_WEIGHT_FILTER);
+    }
+
+    /**
+     * Build the URI of the first catalog page for the given sort order and filters, given as
+     * the IDs of their menu items.
+     */
+    private static Uri buildPageUri(int sort, int genderFilter, int weightFilter) {
+        String pageKey = PetEntry.COLUMN_PET_NAME;
+        boolean descending = false;
+        switch (sort) {
+            case R.id.sort_name_descending:
+                descending = true;
+                break;
+            case R.id.sort_weight_ascending:
+                pageKey = PetEntry.COLUMN_PET_WEIGHT;
+                break;
+            case R.id.sort_weight_descending:
+                pageKey = PetEntry.COLUMN_PET_WEIGHT;
+                descending = true;
+                break;
+            case R.id.sort_newest:
+                pageKey = PetEntry._ID;
+                descending = true;
+                break;
+        }
+
+        // Pages come back as in-memory snapshots, next pages included, since
+        // buildNextPageUri() keeps this parameter.
+        Uri.Builder builder = PetEntry.buildPageUri(pageKey, PAGE_SIZE).buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAMETER_SNAPSHOT, "true");
+        if (descending) {
+            builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_ORDER, PetEntry.ORDER_DESCENDING);
+        }
+
+        switch (genderFilter) {
+            case R.id.filter_gender_male:
+                builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_GENDER,
+                        String.valueOf(PetEntry.GENDER_MALE));
+                break;
+            case R.id.filter_gender_female:
+                builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_GENDER,
+                        String.valueOf(PetEntry.GENDER_FEMALE));
+                break;
+            case R.id.filter_gender_unknown:
+                builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_GENDER,
+                        String.valueOf(PetEntry.GENDER_UNKNOWN));
+                break;
+        }
+
+        switch (weightFilter) {
+            case R.id.filter_weight_light:
+                builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_MAX_WEIGHT,
+                        String.valueOf(MEDIUM_MIN_WEIGHT - 1));
+                break;
+            case R.id.filter_weight_medium:
+                builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_MIN_WEIGHT,
+                        String.valueOf(MEDIUM_MIN_WEIGHT));
+                builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_MAX_WEIGHT,
+                        String.valueOf(HEAVY_MIN_WEIGHT - 1));
+                break;
+            case R.id.filter_weight_heavy:
+                builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_MIN_WEIGHT,
+                        String.valueOf(HEAVY_MIN_WEIGHT));
+                break;
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Reload the catalog from its first page after the sort order or a filter changed.
+     */
+    private void reloadCatalog() {
+        cursorAdapter.setPageUri(buildPageUri());
+        getSupportLoaderManager().restartLoader(0, null, this);
+    }
+
     private void insertPet() {
         ContentValues values = new ContentValues();
         values.put(PetEntry.COLUMN_PET_NAME, "Toto");
@@ -74,22 +312,102 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
         values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
 
-        Uri newRowId = getContentResolver().insert(PetEntry.CONTENT_URI, values);
+        mQueryHandler.startInsert(TOKEN_INSERT_PET, null, PetEntry.CONTENT_URI, values);
+    }
 
-        if (newRowId != null)
-            Toast.makeText(CatalogActivity.this, "Pet saved" + newRowId, Toast.LENGTH_SHORT).show();
-        else
-            Toast.makeText(CatalogActivity.this, "Error saving pet", Toast.LENGTH_SHORT).show();
+    private void deleteAllPets() {
+        if (sPurgeTask != null) {
+            return;
+        }
+        sPurgeTask = new PurgeTask(this);
+        // Off the serial executor, which the catalog's paging and the editor's tasks share and
+        // which a long purge would otherwise hold up until it finished
+        sPurgeTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
+    private void showPurgeProgress(long deleted, long total) {
+        if (mPurgeDialog == null) {
+            mPurgeDialog = new ProgressDialog(this);
+            mPurgeDialog.setTitle(R.string.purge_title);
+            mPurgeDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mPurgeDialog.setCancelable(false);
+            mPurgeDialog.show();
+        }
+        mPurgeDialog.setMax((int) total);
+        mPurgeDialog.setProgress((int) deleted);
     }
 
-    private void deleteAllPets() {
-        int petsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
-        if (petsDeleted != -1)
-            Toast.makeText(CatalogActivity.this, "Pets deleted " + petsDeleted, Toast.LENGTH_SHORT).show();
-        else
-            Toast.makeText(CatalogActivity.this, "Error deleting pets", Toast.LENGTH_SHORT).show();
+    private void hidePurgeProgress() {
+        if (mPurgeDialog != null) {
+            mPurgeDialog.dismiss();
+            mPurgeDialog = null;
+        }
+    }
+
+    /**
+     * Empties the pets table one chunk at a time through {@link PetContract#METHOD_PURGE_CHUNK}.
+     * Every chunk commits on its own, so the catalog keeps loading while a large table is
+     * deleted, and the database file shrinks as it goes.
+     */
+    private static class PurgeTask extends AsyncTask<Void, Long, Long> {
+
+        private final Context mAppContext;
+        private CatalogActivity mActivity;
+
+        PurgeTask(CatalogActivity activity) {
+            mAppContext = activity.getApplicationContext();
+            mActivity = activity;
+        }
+
+        /**
+         * Report progress to the given catalog from now on, or to none.
+         */
+        void attach(CatalogActivity activity) {
+            mActivity = activity;
+        }
 
+        @Override
+        protected Long doInBackground(Void... params) {
+            ContentResolver resolver = mAppContext.getContentResolver();
+            long deleted = 0;
+            try {
+                while (true) {
+                    Bundle result = resolver.call(PetEntry.CONTENT_URI,
+                            PetContract.METHOD_PURGE_CHUNK, null, null);
+                    int chunk = result.getInt(PetContract.KEY_ROWS_DELETED);
+                    long remaining = result.getLong(PetContract.KEY_ROWS_REMAINING);
+                    deleted += chunk;
+                    publishProgress(deleted, deleted + remaining);
+                    if (remaining == 0 || chunk == 0) {
+                        return deleted;
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e("CatalogActivity", "Failed to delete pets", e);
+                return -1L;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            if (mActivity != null) {
+                mActivity.showPurgeProgress(values[0], values[1]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Long deleted) {
+            sPurgeTask = null;
+            if (mActivity != null) {
+                mActivity.hidePurgeProgress();
+            }
+            if (deleted != -1) {
+                Toast.makeText(mAppContext, mAppContext.getString(R.string.purge_done, deleted),
+                        Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(mAppContext, R.string.purge_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
     }
 
     @Override
@@ -97,11 +415,44 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.filter_weight_light).setTitle(
+                getString(R.string.filter_weight_light, MEDIUM_MIN_WEIGHT));
+        menu.findItem(R.id.filter_weight_medium).setTitle(
+                getString(R.string.filter_weight_medium, MEDIUM_MIN_WEIGHT, HEAVY_MIN_WEIGHT - 1));
+        menu.findItem(R.id.filter_weight_heavy).setTitle(
+                getString(R.string.filter_weight_heavy, HEAVY_MIN_WEIGHT));
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(mSort).setChecked(true);
+        menu.findItem(mGenderFilter).setChecked(true);
+        menu.findItem(mWeightFilter).setChecked(true);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        // User clicked on a sort order or filter, re-query with it
+        switch (item.getGroupId()) {
+            case R.id.group_sort:
+                mSort = item.getItemId();
+                item.setChecked(true);
+                reloadCatalog();
+                return true;
+            case R.id.group_filter_gender:
+                mGenderFilter = item.getItemId();
+                item.setChecked(true);
+                reloadCatalog();
+                return true;
+            case R.id.group_filter_weight:
+                mWeightFilter = item.getItemId();
+                item.setChecked(true);
+                reloadCatalog();
+                return true;
+        }
+
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
             // Respond to a click on the "Insert dummy data" menu option
@@ -112,58 +463,89 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_delete_all_entries:
                 deleteAllPets();
                 return true;
+            // Respond to a click on the "Import pets" menu option
+            case R.id.action_import_pets:
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("*/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_IMPORT_FILE);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        final Uri uri = PetEntry.CONTENT_URI;
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT_FILE) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                PetImportService.start(this, data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
 
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN__PET_BREED,
-        };
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // Only the first page is loaded up front, the adapter fetches the rest while scrolling
+        return new PageLoader(this, buildPageUri());
+    }
 
-        String selection = null;
-        String[] selectionArgs = new String[]{};
+    @Override
+    public void onPetClick(PetListItem pet) {
+        Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
+        Uri contentUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, pet.getId());
+        intent.setData(contentUri);
+        String message = "Edit Pet";
+        intent.putExtra("key", message);
+        // Hand over the row we already have so the editor can show it right away
+        intent.putExtra(EditorActivity.EXTRA_PET, pet);
+        Log.i("CatalogActivity", contentUri.toString());
+        startActivity(intent);
+    }
 
-        Cursor cursor = getContentResolver().query(PetEntry.CONTENT_URI, projection, null, null, null);
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        cursorAdapter.swapFirstPage(data);
 
-        try {
-            ListView listView = (ListView) findViewById(R.id.list_view_pet);
-            cursorAdapter = new PetCursorAdapter(this, cursor);
-            listView.setAdapter(cursorAdapter);
-            listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        if (!mFirstPageShown) {
+            mFirstPageShown = true;
+            // Runs after the layout pass that binds the first rows, and marks the end of the
+            // startup in the "Fully drawn" line of the activity manager's log
+            findViewById(R.id.list_view_pet).post(new Runnable() {
                 @Override
-                public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-                    Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
-                    Uri contentUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
-                    intent.setData(contentUri);
-                    String message = "Edit Pet";
-                    intent.putExtra("key", message);
-                    Log.i("CatalogActivity", uri + "/" + id);
-                    startActivity(intent);
+                public void run() {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                        reportFullyDrawn();
+                    }
                 }
             });
-
-            View emptyView = findViewById(R.id.empty_view);
-            listView.setEmptyView(emptyView);
-        } catch (Exception e) {
-            Log.i("CatalogActivity", "Error Cursor query");
         }
-
-        return new CursorLoader(this, uri, projection, selection, selectionArgs, null);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        cursorAdapter.swapCursor(data);
+    public void onLoaderReset(Loader<Cursor> loader) {
+        cursorAdapter.swapFirstPage(null);
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        cursorAdapter.swapCursor(null);
+    /**
+     * Loads the first page of the catalog, traced as CatalogActivity.loadPage so the query the
+     * catalog waits for shows apart from the warm-up's in startup traces.
+     */
+    private static class PageLoader extends CursorLoader {
+
+        PageLoader(Context context, Uri pageUri) {
+            super(context, pageUri, PetListItem.PROJECTION, null, null, null);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            TraceCompat.beginSection("CatalogActivity.loadPage");
+            try {
+                return super.loadInBackground();
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
     }
 }
\ No newline at end of file
@@ -15,11 +15,14 @@
  */
 package com.example.android.pets;
 
-import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.NavUtils;
@@ -36,12 +39,17 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static android.R.attr.id;
 
 /**
@@ -49,6 +57,21 @@ import static android.R.attr.id;
  */
 public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
+    /**
+     * Optional {@link PetListItem} extra holding the pet being edited as the caller last saw it.
+     * The form shows it straight away, and the loader only replaces it if the pet has changed.
+     */
+    public static final String EXTRA_PET = "com.example.android.pets.extra.PET";
+
+    private static final int REQUEST_PICK_PHOTO = 1;
+
+    private static final String STATE_PICKED_PHOTO = "picked_photo";
+
+    /**
+     * Most similar pets listed when warning about a new pet that may already be in the shelter
+     */
+    private static final int MAX_SIMILAR_PETS = 3;
+
     /**
      * EditText field to enter the pet's name
      */
@@ -69,6 +92,16 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private Spinner mGenderSpinner;
 
+    /**
+     * The pet's photo, tap it to pick another one
+     */
+    private ImageView mPhotoView;
+
+    /**
+     * Photo picked for the pet and not saved yet, or null
+     */
+    private Uri mPickedPhotoUri;
+
     /**
      * Gender of the pet. The possible values are:
      * 0 for unknown gender, 1 for male, 2 for female.
@@ -88,6 +121,16 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private Uri mCurrentPetUri;
 
+    /**
+     * Look-up of pets similar to a new pet about to be saved, or null
+     */
+    private CheckSimilarPetsTask mCheckSimilarPetsTask;
+
+    /**
+     * The pet as currently shown in the form, or null until it is known
+     */
+    private PetListItem mShownPet;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -106,6 +149,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
+        mPhotoView = (ImageView) findViewById(R.id.pet_photo);
+        mPhotoView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                pickPhoto();
+            }
+        });
 
         mDbHelper = new PetDbHelper(this);
 
@@ -118,7 +168,76 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         setupSpinner();
 
-        getSupportLoaderManager().initLoader(0, null, this);
+        if (savedInstanceState != null) {
+            mPickedPhotoUri = savedInstanceState.getParcelable(STATE_PICKED_PHOTO);
+            if (mPickedPhotoUri != null) {
+                showPhoto(mPickedPhotoUri);
+            }
+        }
+
+        if (mCurrentPetUri != null) {
+            // Render the catalog's copy of the pet at once, then check it in the background
+            PetListItem snapshot = getIntent().getParcelableExtra(EXTRA_PET);
+            if (snapshot != null && savedInstanceState == null) {
+                showPet(snapshot);
+            }
+            mShownPet = snapshot;
+
+            getSupportLoaderManager().initLoader(0, null, this);
+        }
+    }
+
+    /**
+     * Fill the form with the given pet.
+     */
+    private void showPet(PetListItem pet) {
+        mNameEditText.setText(pet.getName());
+        mBreedEditText.setText(pet.getBreed());
+        mWeightEditText.setText(String.valueOf(pet.getWeight()));
+        mGenderSpinner.setSelection(pet.getGender());
+        if (mPickedPhotoUri == null) {
+            showPhoto(pet.hasPhoto() ? PetEntry.buildPhotoUri(pet.getId()) : null);
+        }
+    }
+
+    /**
+     * Show the image at the given URI, or no image at all, as the pet's photo.
+     */
+    private void showPhoto(Uri uri) {
+        if (uri == null) {
+            mPhotoView.setTag(null);
+            mPhotoView.setImageDrawable(null);
+            return;
+        }
+        PetThumbnailCache.get(this).loadPreview(uri,
+                getResources().getDimensionPixelSize(R.dimen.photo_preview_size), mPhotoView);
+    }
+
+    private void pickPhoto() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(Intent.createChooser(intent, getString(R.string.pick_photo_title)),
+                REQUEST_PICK_PHOTO);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_PICK_PHOTO) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+            mPickedPhotoUri = data.getData();
+            mPetHasChanged = true;
+            showPhoto(mPickedPhotoUri);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_PICKED_PHOTO, mPickedPhotoUri);
     }
 
     @Override
@@ -239,6 +358,49 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 Toast.makeText(EditorActivity.this, "Error saving pet", Toast.LENGTH_SHORT).show();
         }
 
+        Uri petUri = mCurrentPetUri != null ? mCurrentPetUri : newRowId;
+        if (mPickedPhotoUri != null && petUri != null) {
+            // Copying the photo can take a while, and goes on after the editor has closed
+            new SetPhotoTask(getApplicationContext(), mPickedPhotoUri).execute(petUri);
+        }
+    }
+
+    /**
+     * Copies a picked photo into the provider as the photo of the given pet.
+     */
+    private static class SetPhotoTask extends AsyncTask<Uri, Void, Boolean> {
+
+        private final Context mContext;
+        private final Uri mSource;
+
+        SetPhotoTask(Context context, Uri source) {
+            mContext = context;
+            mSource = source;
+        }
+
+        @Override
+        protected Boolean doInBackground(Uri... petUris) {
+            Bundle extras = new Bundle();
+            extras.putParcelable(PetContract.KEY_PHOTO_SOURCE, mSource);
+            try {
+                mContext.getContentResolver().call(PetEntry.CONTENT_URI,
+                        PetContract.METHOD_SET_PHOTO, petUris[0].toString(), extras);
+                return true;
+            } catch (IllegalArgumentException e) {
+                Log.e("EditorActivity", "Cannot set photo of " + petUris[0], e);
+                return false;
+            } catch (SecurityException e) {
+                Log.e("EditorActivity", "Cannot set photo of " + petUris[0], e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean saved) {
+            if (!saved) {
+                Toast.makeText(mContext, R.string.photo_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
     }
 
     @Override
@@ -255,6 +417,17 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
+                String petName = mNameEditText.getText().toString().trim();
+                if (mCurrentPetUri == null && !TextUtils.isEmpty(petName)) {
+                    // Warn about a pet that is already in the shelter before adding it again,
+                    // the dialog or the task then saves the pet
+                    if (mCheckSimilarPetsTask == null) {
+                        mCheckSimilarPetsTask = new CheckSimilarPetsTask();
+                        mCheckSimilarPetsTask.execute(PetEntry.buildSimilarUri(petName,
+                                mBreedEditText.getText().toString().trim(), MAX_SIMILAR_PETS));
+                    }
+                    return true;
+                }
                 // Save pet to database
                 savePet();
                 // Exit activity
@@ -286,6 +459,96 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Looks up the pets similar to the new pet in the background, then saves the pet or asks
+     * whether to save it anyway.
+     */
+    private class CheckSimilarPetsTask extends AsyncTask<Uri, Void, List<String>> {
+
+        @Override
+        protected List<String> doInBackground(Uri... uris) {
+            // Failing to look for duplicates is no reason not to save the pet
+            try {
+                return findSimilarPets(uris[0]);
+            } catch (SQLException e) {
+                Log.e("EditorActivity", "Cannot look up pets similar to " + uris[0], e);
+                return new ArrayList<String>();
+            } catch (IllegalArgumentException e) {
+                Log.e("EditorActivity", "Cannot look up pets similar to " + uris[0], e);
+                return new ArrayList<String>();
+            }
+        }
+
+        private List<String> findSimilarPets(Uri uri) {
+            List<String> similarPets = new ArrayList<String>();
+            Cursor cursor = getContentResolver().query(uri, null, null, null, null);
+            if (cursor == null) {
+                return similarPets;
+            }
+            try {
+                int nameColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+                int breedColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN__PET_BREED);
+                while (cursor.moveToNext()) {
+                    String breed = cursor.getString(breedColumn);
+                    similarPets.add(TextUtils.isEmpty(breed) ? cursor.getString(nameColumn)
+                            : getString(R.string.similar_pet, cursor.getString(nameColumn), breed));
+                }
+            } finally {
+                cursor.close();
+            }
+            return similarPets;
+        }
+
+        @Override
+        protected void onPostExecute(List<String> similarPets) {
+            mCheckSimilarPetsTask = null;
+            if (similarPets.isEmpty()) {
+                savePet();
+                finish();
+            } else {
+                showSimilarPetsDialog(similarPets);
+            }
+        }
+    }
+
+    private void showSimilarPetsDialog(List<String> similarPets) {
+        StringBuilder message = new StringBuilder(getString(R.string.similar_pets_message));
+        for (String similarPet : similarPets) {
+            message.append("\n\u2022 ").append(similarPet);
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.similar_pets_title);
+        builder.setMessage(message);
+        builder.setPositiveButton(R.string.similar_pets_save, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                savePet();
+                finish();
+            }
+        });
+        builder.setNegativeButton(R.string.similar_pets_keep_editing, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int i) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mCheckSimilarPetsTask != null) {
+            mCheckSimilarPetsTask.cancel(false);
+            mCheckSimilarPetsTask = null;
+        }
+        super.onDestroy();
+    }
+
     private void showDeleteConfirmationDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setMessage("Delete this pet?");
@@ -325,32 +588,27 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        final Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 5);
-
-        Uri uriIntent = getIntent().getData();
-        if (uriIntent == null) {
-            return null;
-        }
-
-        Log.i("EditorActivity", uriIntent + "");
-        Cursor cursor = getContentResolver().query(uriIntent, null, null, null, null);
-        return new CursorLoader(this, uriIntent, null, null, null, null);
+        Log.i("EditorActivity", mCurrentPetUri + "");
+        return new CursorLoader(this, mCurrentPetUri, PetListItem.PROJECTION, null, null, null);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        String name = "cursor not set";
-        while (cursor.moveToNext()) {
-            name = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME));
-            String breed = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN__PET_BREED));
-            String weight = String.valueOf(cursor.getInt(cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT)));
-            int gender = cursor.getInt(cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER));
-
-            mNameEditText.setText(name);
-            mBreedEditText.setText(breed);
-            mWeightEditText.setText(weight);
-            mGenderSpinner.setSelection(gender);
+        List<PetListItem> pets = PetListItem.fromCursor(cursor);
+        if (pets.isEmpty()) {
+            return;
+        }
+
+        // Only touch the form if the pet changed since it was shown, and never over the
+        // user's own edits.
+        PetListItem pet = pets.get(0);
+        if (mShownPet != null && mShownPet.hasSameContents(pet)) {
+            return;
         }
+        if (!mPetHasChanged) {
+            showPet(pet);
+        }
+        mShownPet = pet;
     }
 
     @Override
@@ -360,5 +618,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mBreedEditText.setText("");
         mWeightEditText.setText("");
         mGenderSpinner.setSelection(0);
+        if (mPickedPhotoUri == null) {
+            showPhoto(null);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.example.android.pets;
+
+import android.app.Application;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+
+/**
+ * Warms the catalog up when the launcher starts the app. {@link CatalogActivity} calls
+ * {@link #startWarmUp(Context)} before it inflates its layout, and a background thread opens
+ * shelter.db, creating or upgrading it if need be, and queries the catalog's first page, which
+ * the provider keeps in its query cache. By the time the catalog's loader asks for that page
+ * the database is open and the page is usually ready. Processes started for the provider, the
+ * import service or a broadcast skip the warm-up.
+ */
+public class PetApplication extends Application {
+
+    private static final String LOG_TAG = PetApplication.class.getSimpleName();
+
+    private static final String PREFERENCES = "startup";
+    private static final String KEY_WARM_UP = "warm_up";
+
+    /**
+     * Whether this process has started its warm-up, which only the first launch needs
+     */
+    private static boolean sWarmUpStarted;
+
+    /**
+     * Start warming the catalog up on a background thread, unless this process already has or
+     * the warm-up is turned off. Call on the main thread.
+     */
+    static void startWarmUp(Context context) {
+        if (sWarmUpStarted) {
+            return;
+        }
+        sWarmUpStarted = true;
+
+        final Context appContext = context.getApplicationContext();
+        // Normal priority on purpose, the first frame is waiting for this work
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp(appContext);
+            }
+        }, "PetWarmUp").start();
+    }
+
+    private static void warmUp(Context context) {
+        if (!isWarmUpEnabled(context)) {
+            return;
+        }
+
+        TraceCompat.beginSection("PetApplication.warmUp");
+        Cursor cursor = null;
+        try {
+            // Same URI and projection as the catalog's loader, so its query hits the cache
+            cursor = context.getContentResolver().query(CatalogActivity.buildDefaultPageUri(),
+                    PetListItem.PROJECTION, null, null, null);
+            if (cursor != null) {
+                cursor.getCount();
+            }
+        } catch (RuntimeException e) {
+            // The catalog will simply do the work itself
+            Log.w(LOG_TAG, "Failed to warm up the catalog", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Whether the catalog is warmed up when the launcher starts the app, see
+     * {@link #setWarmUpEnabled(Context, boolean)}.
+     */
+    public static boolean isWarmUpEnabled(Context context) {
+        return context.getSharedPreferences(PREFERENCES, MODE_PRIVATE).getBoolean(KEY_WARM_UP,
+                context.getResources().getBoolean(R.bool.config_startup_warm_up));
+    }
+
+    /**
+     * Turn the warm-up on or off from the next launch of the process on, overriding
+     * config_startup_warm_up. Used to measure what the warm-up gains.
+     */
+    public static void setWarmUpEnabled(Context context, boolean enabled) {
+        context.getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit()
+                .putBoolean(KEY_WARM_UP, enabled)
+                .commit();
+    }
+}
@@ -1,45 +0,0 @@
-package com.example.android.pets;
-
-import android.content.Context;
-import android.database.Cursor;
-import android.text.TextUtils;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.view.ViewGroup;
-import android.widget.CursorAdapter;
-import android.widget.TextView;
-
-import com.example.android.pets.data.PetContract;
-
-/**
- * Created by Francislainy on 20/02/2017.
- */
-
-public class PetCursorAdapter extends CursorAdapter {
-    public PetCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0);
-    }
-
-    @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
-    }
-
-    @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView breedTextView = (TextView) view.findViewById(R.id.breed);
-
-        int nameColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.COLUMN_PET_NAME);
-        int breedColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.COLUMN__PET_BREED);
-
-        String name = cursor.getString(nameColumnIndex);
-        String breed = cursor.getString(breedColumnIndex);
-
-        nameTextView.setText(name);
-        if (TextUtils.isEmpty(breed)) {
-            breed = "Unknown breed";
-        }
-        breedTextView.setText(breed);
-    }
-}
\ No newline at end of file
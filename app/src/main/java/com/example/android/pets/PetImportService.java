@@ -0,0 +1,137 @@
+package com.example.android.pets;
+
+import android.app.IntentService;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.example.android.pets.data.PetImporter;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Imports an intake file of pets in the background, showing its progress in a notification.
+ *
+ * The number of records committed so far is saved with every chunk, so if an import fails
+ * part way through, importing the same file again carries on after the last committed chunk.
+ */
+public class PetImportService extends IntentService {
+
+    private static final String LOG_TAG = PetImportService.class.getSimpleName();
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Bytes read from the start of a file of unknown type to tell JSON from CSV
+     */
+    private static final int SNIFF_LIMIT = 1024;
+
+    /**
+     * Start importing the CSV or JSON file at the given URI.
+     */
+    public static void start(Context context, Uri file) {
+        Intent intent = new Intent(context, PetImportService.class);
+        intent.setData(file);
+        context.startService(intent);
+    }
+
+    public PetImportService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Uri file = intent.getData();
+        if (file == null) {
+            return;
+        }
+
+        PetImporter importer = new PetImporter(getContentResolver());
+        String source = file.toString();
+        int recordsDone = importer.getCheckpoint(source);
+
+        final NotificationManager notificationManager =
+                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        final NotificationCompat.Builder notification = new NotificationCompat.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(getString(R.string.import_title))
+                .setContentText(getString(R.string.import_progress, recordsDone))
+                .setProgress(0, 0, true)
+                .setOngoing(true);
+        notificationManager.notify(NOTIFICATION_ID, notification.build());
+
+        InputStream in = null;
+        String message;
+        try {
+            in = new BufferedInputStream(getContentResolver().openInputStream(file));
+            PetImporter.Result result = importer.importPets(
+                    in, isJson(file, in), source, new PetImporter.ProgressListener() {
+                        @Override
+                        public void onChunkCommitted(int recordsDone, int inserted, int rejected) {
+                            notification.setContentText(getString(R.string.import_progress, recordsDone));
+                            notificationManager.notify(NOTIFICATION_ID, notification.build());
+                        }
+                    });
+
+            importer.clearCheckpoint(source);
+            message = getString(R.string.import_done, result.inserted, result.rejected);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to import " + file, e);
+            message = getString(R.string.import_failed);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to import " + file, e);
+            message = getString(R.string.import_failed);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close " + file, e);
+                }
+            }
+        }
+
+        notification.setSmallIcon(android.R.drawable.stat_sys_download_done)
+                .setContentText(message)
+                .setProgress(0, 0, false)
+                .setOngoing(false);
+        notificationManager.notify(NOTIFICATION_ID, notification.build());
+    }
+
+    /**
+     * Whether the file holds JSON rather than CSV, going by its type or else by its content:
+     * a JSON array starts with [ once any whitespace is skipped, while a CSV header doesn't.
+     * The stream is left where it was.
+     */
+    private boolean isJson(Uri file, InputStream in) throws IOException {
+        String type = getContentResolver().getType(file);
+        if (type != null && type.contains("json")) {
+            return true;
+        }
+        if (type != null && (type.contains("csv") || type.contains("comma-separated"))) {
+            return false;
+        }
+
+        in.mark(SNIFF_LIMIT);
+        try {
+            for (int i = 0; i < SNIFF_LIMIT; i++) {
+                int b = in.read();
+                if (b == -1) {
+                    return false;
+                }
+                // Skip whitespace and a UTF-8 byte order mark
+                if (!Character.isWhitespace(b) && b != 0xEF && b != 0xBB && b != 0xBF) {
+                    return b == '[';
+                }
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+}
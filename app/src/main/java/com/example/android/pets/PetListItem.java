@@ -0,0 +1,143 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pet as shown in a row of the catalog list. It carries every column of the pet, so the
+ * catalog can hand it to {@link EditorActivity}, which shows it straight away instead of waiting
+ * for its own query.
+ */
+public class PetListItem implements Parcelable {
+
+    /**
+     * Columns to query for {@link #fromCursor(Cursor)}
+     */
+    public static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN__PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO_UPDATED,
+    };
+
+    private final long mId;
+    private final String mName;
+    private final String mBreed;
+    private final int mGender;
+    private final int mWeight;
+    private final long mPhotoUpdated;
+
+    public PetListItem(long id, String name, String breed, int gender, int weight,
+                       long photoUpdated) {
+        mId = id;
+        mName = name;
+        mBreed = breed;
+        mGender = gender;
+        mWeight = weight;
+        mPhotoUpdated = photoUpdated;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getBreed() {
+        return mBreed;
+    }
+
+    public int getGender() {
+        return mGender;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * When the pet's photo was last set, or 0 if it has none, see
+     * {@link PetEntry#COLUMN_PET_PHOTO_UPDATED}.
+     */
+    public long getPhotoUpdated() {
+        return mPhotoUpdated;
+    }
+
+    public boolean hasPhoto() {
+        return mPhotoUpdated != 0;
+    }
+
+    /**
+     * Whether the given item shows exactly the same data as this one.
+     */
+    public boolean hasSameContents(PetListItem other) {
+        return TextUtils.equals(mName, other.mName) && TextUtils.equals(mBreed, other.mBreed)
+                && mGender == other.mGender && mWeight == other.mWeight
+                && mPhotoUpdated == other.mPhotoUpdated;
+    }
+
+    /**
+     * Read every row of the given cursor, queried with {@link #PROJECTION}, into a list of items.
+     * Column indices are looked up once for the whole cursor rather than once per row.
+     */
+    public static List<PetListItem> fromCursor(Cursor cursor) {
+        List<PetListItem> items = new ArrayList<PetListItem>(cursor.getCount());
+
+        int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN__PET_BREED);
+        int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+        int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+        int photoUpdatedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO_UPDATED);
+
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            items.add(new PetListItem(cursor.getLong(idColumnIndex),
+                    cursor.getString(nameColumnIndex),
+                    cursor.getString(breedColumnIndex),
+                    cursor.getInt(genderColumnIndex),
+                    cursor.getInt(weightColumnIndex),
+                    cursor.getLong(photoUpdatedColumnIndex)));
+        }
+        return items;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mId);
+        dest.writeString(mName);
+        dest.writeString(mBreed);
+        dest.writeInt(mGender);
+        dest.writeInt(mWeight);
+        dest.writeLong(mPhotoUpdated);
+    }
+
+    public static final Creator<PetListItem> CREATOR = new Creator<PetListItem>() {
+        @Override
+        public PetListItem createFromParcel(Parcel source) {
+            return new PetListItem(source.readLong(), source.readString(), source.readString(),
+                    source.readInt(), source.readInt(), source.readLong());
+        }
+
+        @Override
+        public PetListItem[] newArray(int size) {
+            return new PetListItem[size];
+        }
+    };
+}
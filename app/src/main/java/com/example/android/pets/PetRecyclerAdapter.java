@@ -0,0 +1,302 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RecyclerView adapter for the catalog list that loads pets one page at a time. The first page
+ * is handed over by the activity's loader, and each following page is fetched in the background
+ * from {@link PetEntry#buildNextPageUri(Uri, String, long)} as the user scrolls near the end.
+ *
+ * When the loader delivers a new first page, the difference with the rows on screen is worked
+ * out in the background, keyed on _id, so only the rows that actually changed are rebound.
+ */
+public class PetRecyclerAdapter extends RecyclerView.Adapter<PetRecyclerAdapter.PetViewHolder> {
+
+    /**
+     * Receives clicks on the pets of the list.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(PetListItem pet);
+    }
+
+    /**
+     * How many rows before the end of the loaded pets the next page starts loading
+     */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private final Context mContext;
+    private Uri mPageUri;
+    private final int mPageSize;
+    private final OnPetClickListener mListener;
+    private final PetThumbnailCache mThumbnailCache;
+
+    private List<PetListItem> mItems = new ArrayList<PetListItem>();
+    private boolean mEndReached = true;
+    private PageTask mPageTask;
+    private DiffTask mDiffTask;
+
+    /**
+     * Whether a row has been bound yet, so only the first bind is traced
+     */
+    private boolean mBound;
+
+    /**
+     * @param pageUri URI of the first page, as built by {@link PetEntry#buildPageUri(String, int)}
+     */
+    public PetRecyclerAdapter(Context context, Uri pageUri, OnPetClickListener listener) {
+        mContext = context;
+        mPageUri = pageUri;
+        mPageSize = Integer.parseInt(pageUri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT));
+        mListener = listener;
+        mThumbnailCache = PetThumbnailCache.get(context);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Fetch further pages from the given first page URI from now on, for example once the
+     * catalog's filters change. The caller reloads the first page itself and hands it to
+     * {@link #swapFirstPage(Cursor)}. The page size must stay the same.
+     */
+    public void setPageUri(Uri pageUri) {
+        if (mPageTask != null) {
+            mPageTask.cancel(false);
+            mPageTask = null;
+        }
+        mPageUri = pageUri;
+        // What is loaded belongs to the old URI, page again once the new first page is in
+        mEndReached = true;
+    }
+
+    /**
+     * Replace everything loaded so far with the first page held by the given cursor, which
+     * may be null. The cursor is only read, never closed.
+     */
+    public void swapFirstPage(Cursor cursor) {
+        if (mPageTask != null) {
+            mPageTask.cancel(false);
+            mPageTask = null;
+        }
+        if (mDiffTask != null) {
+            mDiffTask.cancel(false);
+            mDiffTask = null;
+        }
+
+        List<PetListItem> items = cursor == null
+                ? new ArrayList<PetListItem>()
+                : PetListItem.fromCursor(cursor);
+        boolean endReached = cursor == null || cursor.getCount() < mPageSize;
+
+        if (mItems.isEmpty() || items.isEmpty()) {
+            // Nothing to diff against, a full refresh is just as cheap
+            mItems = items;
+            mEndReached = endReached;
+            notifyDataSetChanged();
+            return;
+        }
+
+        mDiffTask = new DiffTask(new ArrayList<PetListItem>(mItems), items, endReached);
+        mDiffTask.execute();
+    }
+
+    private void loadNextPage() {
+        if (mEndReached || mPageTask != null || mDiffTask != null || mItems.isEmpty()) {
+            return;
+        }
+
+        PetListItem last = mItems.get(mItems.size() - 1);
+        String pageKey = mPageUri.getQueryParameter(PetEntry.QUERY_PARAMETER_PAGE_KEY);
+        String afterKey;
+        if (PetEntry.COLUMN_PET_NAME.equals(pageKey)) {
+            afterKey = last.getName();
+        } else if (PetEntry.COLUMN_PET_WEIGHT.equals(pageKey)) {
+            afterKey = String.valueOf(last.getWeight());
+        } else {
+            afterKey = String.valueOf(last.getId());
+        }
+
+        mPageTask = new PageTask();
+        mPageTask.execute(PetEntry.buildNextPageUri(mPageUri, afterKey, last.getId()));
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        if (mBound) {
+            holder.bind(mItems.get(position));
+        } else {
+            mBound = true;
+            TraceCompat.beginSection("PetRecyclerAdapter.firstBind");
+            try {
+                holder.bind(mItems.get(position));
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
+
+        if (position >= mItems.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).getId();
+    }
+
+    /**
+     * Holds on to the views of one row, so they are looked up once rather than on every bind.
+     */
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        private final TextView mNameTextView;
+        private final TextView mBreedTextView;
+        private final ImageView mThumbnailView;
+        private PetListItem mItem;
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            mNameTextView = (TextView) itemView.findViewById(R.id.name);
+            mBreedTextView = (TextView) itemView.findViewById(R.id.breed);
+            mThumbnailView = (ImageView) itemView.findViewById(R.id.thumbnail);
+            itemView.setOnClickListener(this);
+        }
+
+        void bind(PetListItem item) {
+            mItem = item;
+
+            String breed = item.getBreed();
+            mNameTextView.setText(item.getName());
+            if (TextUtils.isEmpty(breed)) {
+                breed = "Unknown breed";
+            }
+            mBreedTextView.setText(breed);
+            mThumbnailCache.load(item, mThumbnailView);
+        }
+
+        @Override
+        public void onClick(View view) {
+            if (mItem != null && mListener != null) {
+                mListener.onPetClick(mItem);
+            }
+        }
+    }
+
+    /**
+     * Fetches the next page off the main thread and appends it to the list.
+     */
+    private class PageTask extends AsyncTask<Uri, Void, List<PetListItem>> {
+
+        @Override
+        protected List<PetListItem> doInBackground(Uri... uris) {
+            Cursor cursor = mContext.getContentResolver().query(uris[0], PetListItem.PROJECTION,
+                    null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return PetListItem.fromCursor(cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<PetListItem> page) {
+            if (mPageTask != this) {
+                return;
+            }
+            mPageTask = null;
+
+            if (page == null) {
+                return;
+            }
+            int start = mItems.size();
+            mItems.addAll(page);
+            mEndReached = page.size() < mPageSize;
+            notifyItemRangeInserted(start, page.size());
+        }
+    }
+
+    /**
+     * Works out, off the main thread, which rows differ between the pets on screen and a new
+     * first page, then applies only those changes.
+     */
+    private class DiffTask extends AsyncTask<Void, Void, DiffUtil.DiffResult> {
+
+        private final List<PetListItem> mOldItems;
+        private final List<PetListItem> mNewItems;
+        private final boolean mNewEndReached;
+
+        DiffTask(List<PetListItem> oldItems, List<PetListItem> newItems, boolean newEndReached) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+            mNewEndReached = newEndReached;
+        }
+
+        @Override
+        protected DiffUtil.DiffResult doInBackground(Void... params) {
+            return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return mOldItems.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return mNewItems.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                    return mOldItems.get(oldItemPosition).getId()
+                            == mNewItems.get(newItemPosition).getId();
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                    return mOldItems.get(oldItemPosition)
+                            .hasSameContents(mNewItems.get(newItemPosition));
+                }
+            });
+        }
+
+        @Override
+        protected void onPostExecute(DiffUtil.DiffResult result) {
+            if (mDiffTask != this) {
+                return;
+            }
+            mDiffTask = null;
+
+            mItems = mNewItems;
+            mEndReached = mNewEndReached;
+            result.dispatchUpdatesTo(PetRecyclerAdapter.this);
+        }
+    }
+}
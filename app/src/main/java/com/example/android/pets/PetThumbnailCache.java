@@ -0,0 +1,378 @@
+package com.example.android.pets;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Square thumbnails of the pet photos for the catalog rows. Each photo is decoded once, in the
+ * background and already downsampled to about the thumbnail size, then kept in a memory cache
+ * bounded by bytes. Thumbnails pushed out of memory are still on disk, in the app's cache
+ * directory, so scrolling back to a row never decodes its full-size photo again.
+ * <p>
+ * Thumbnails are keyed on the pet and its {@link PetEntry#COLUMN_PET_PHOTO_UPDATED}, so a new
+ * photo simply misses the cache and the old thumbnail is dropped.
+ */
+public final class PetThumbnailCache implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = PetThumbnailCache.class.getSimpleName();
+
+    /**
+     * Directory, under the app's cache directory, holding the thumbnails
+     */
+    private static final String DISK_DIRECTORY = "thumbnails";
+
+    /**
+     * Most bytes of thumbnails kept on disk
+     */
+    private static final long DISK_CAPACITY_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Part of the app's memory class the memory cache may use
+     */
+    private static final int MEMORY_FRACTION = 16;
+
+    private static final int JPEG_QUALITY = 85;
+
+    private static final int DECODE_THREADS = 2;
+
+    private static PetThumbnailCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final File mDiskDirectory;
+    private final int mSize;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Bytes of thumbnails on disk, or -1 until the directory has been read
+     */
+    private long mDiskBytes = -1;
+
+    public static synchronized PetThumbnailCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetThumbnailCache(Context context) {
+        mResolver = context.getContentResolver();
+        mDiskDirectory = new File(context.getCacheDir(), DISK_DIRECTORY);
+        mSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        mMemoryCache = new LruCache<String, Bitmap>(memoryClass * 1024 * 1024 / MEMORY_FRACTION) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "PetThumbnail");
+            }
+        });
+
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Show the thumbnail of the given pet's photo in the given view, at once if it is in memory
+     * and otherwise as soon as it has been loaded in the background. Call on the main thread.
+     * A view that is rebound to another pet in the meantime is left alone.
+     */
+    public void load(PetListItem pet, ImageView view) {
+        if (!pet.hasPhoto()) {
+            view.setTag(null);
+            view.setImageDrawable(null);
+            return;
+        }
+
+        String key = keyOf(pet.getId(), pet.getPhotoUpdated());
+        view.setTag(key);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setImageDrawable(null);
+        mExecutor.execute(new LoadTask(pet.getId(), key, view));
+    }
+
+    /**
+     * Show the image at the given URI, downsampled to fit the given size, in the given view.
+     * Nothing is cached, this is for one-off previews such as a photo just picked in the editor.
+     */
+    public void loadPreview(final Uri uri, final int size, ImageView view) {
+        final String key = uri.toString();
+        view.setTag(key);
+        view.setImageDrawable(null);
+        final WeakReference<ImageView> viewReference = new WeakReference<ImageView>(view);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliver(viewReference, key, decode(uri, size));
+            }
+        });
+    }
+
+    private static String keyOf(long id, long photoUpdated) {
+        return id + "_" + photoUpdated;
+    }
+
+    /**
+     * Loads one thumbnail from disk or, failing that, from the pet's photo.
+     */
+    private class LoadTask implements Runnable {
+
+        private final long mId;
+        private final String mKey;
+        private final WeakReference<ImageView> mViewReference;
+
+        LoadTask(long id, String key, ImageView view) {
+            mId = id;
+            mKey = key;
+            mViewReference = new WeakReference<ImageView>(view);
+        }
+
+        @Override
+        public void run() {
+            // Rows fly past while scrolling, skip the ones that were rebound before their turn
+            ImageView view = mViewReference.get();
+            if (view == null || !mKey.equals(view.getTag())) {
+                return;
+            }
+
+            Bitmap bitmap = mMemoryCache.get(mKey);
+            if (bitmap == null) {
+                bitmap = readFromDisk(mKey);
+            }
+            if (bitmap == null) {
+                bitmap = decode(PetEntry.buildPhotoUri(mId), mSize);
+                if (bitmap != null) {
+                    writeToDisk(mId, mKey, bitmap);
+                }
+            }
+            if (bitmap != null) {
+                mMemoryCache.put(mKey, bitmap);
+            }
+            deliver(mViewReference, mKey, bitmap);
+        }
+    }
+
+    /**
+     * Show the given bitmap in the referenced view, on the main thread, if the view still
+     * wants it.
+     */
+    private void deliver(final WeakReference<ImageView> viewReference, final String key,
+                         final Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ImageView view = viewReference.get();
+                if (view != null && key.equals(view.getTag())) {
+                    view.setImageBitmap(bitmap);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode a square thumbnail of the image at the given URI. The image is downsampled while it
+     * is decoded, by the largest power of two that keeps it at least the given size, so the
+     * full-size image is never held in memory.
+     */
+    private Bitmap decode(Uri uri, int size) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = mResolver.openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                return null;
+            }
+            FileDescriptor fd = descriptor.getFileDescriptor();
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= size
+                    && options.outHeight / (sampleSize * 2) >= size) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            // Decoding the bounds moved the descriptor to the end of the image
+            descriptor.close();
+            descriptor = mResolver.openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                return null;
+            }
+            Bitmap sampled = BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(),
+                    null, options);
+            if (sampled == null) {
+                return null;
+            }
+            return ThumbnailUtils.extractThumbnail(sampled, size, size,
+                    ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot decode " + uri, e);
+            return null;
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "Cannot read " + uri, e);
+            return null;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+    }
+
+    private Bitmap readFromDisk(String key) {
+        File file = new File(mDiskDirectory, key + ".jpg");
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            file.delete();
+        } else {
+            // Keeps the most recently used thumbnails when the directory is trimmed
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Spill a freshly decoded thumbnail to disk, dropping the pet's older thumbnails and, when
+     * the directory outgrows its capacity, the least recently used ones.
+     */
+    private synchronized void writeToDisk(long id, String key, Bitmap bitmap) {
+        if (!mDiskDirectory.isDirectory() && !mDiskDirectory.mkdirs()) {
+            return;
+        }
+        File[] files = mDiskDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        if (mDiskBytes < 0) {
+            mDiskBytes = 0;
+            for (File file : files) {
+                mDiskBytes += file.length();
+            }
+        }
+
+        String stalePrefix = id + "_";
+        for (File file : files) {
+            if (file.getName().startsWith(stalePrefix)) {
+                mDiskBytes -= file.length();
+                file.delete();
+            }
+        }
+
+        File file = new File(mDiskDirectory, key + ".jpg");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot write thumbnail " + file, e);
+            file.delete();
+            return;
+        }
+        mDiskBytes += file.length();
+
+        if (mDiskBytes > DISK_CAPACITY_BYTES) {
+            trimDisk();
+        }
+    }
+
+    private void trimDisk() {
+        File[] files = mDiskDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        // Trim to three quarters, so the next few thumbnails don't each trim again
+        for (int i = 0; i < files.length && mDiskBytes > DISK_CAPACITY_BYTES * 3 / 4; i++) {
+            mDiskBytes -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // Everything is on disk, nothing is lost
+            mMemoryCache.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
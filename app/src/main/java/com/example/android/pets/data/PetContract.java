@@ -1,6 +1,7 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -17,19 +18,144 @@ public final class PetContract {
     public static final String CONTENT_AUTHORITY = "com.example.android.pets";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_PETS = "pets";
+    public static final String PATH_PHOTO = "photo";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_SIMILAR = "similar";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_IMPORTS = "imports";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_SLOW_QUERIES = "slow_queries";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method that copies
+     * the write-ahead log back into shelter.db without blocking readers or writers.
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method returning the
+     * counters of the provider's query result cache, under the KEY_CACHE_* keys. The bundle is
+     * empty when the cache is turned off.
+     */
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "get_query_cache_stats";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method that sets the
+     * duration, in milliseconds, from which statements go into the slow-query log. The argument
+     * is the threshold as a decimal string, a negative value turns the log off.
+     */
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method that turns
+     * group commit on or off. The argument is "true" or "false". With group commit, single pet
+     * inserts and updates from every thread are handed to one writer thread that commits them
+     * in groups, and each call returns once its group has been committed. Turning it off
+     * commits every write still queued first.
+     */
+    public static final String METHOD_SET_GROUP_COMMIT = "set_group_commit";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method deleting the
+     * next chunk of pets in a short transaction of its own, so emptying a large table never
+     * holds the database for long. The argument is the chunk size as a decimal string, or null
+     * for the provider's default. Returns KEY_ROWS_DELETED and KEY_ROWS_REMAINING. Call it again
+     * until no rows remain.
+     */
+    public static final String METHOD_PURGE_CHUNK = "purge_chunk";
+
+    public static final String KEY_ROWS_DELETED = "rows_deleted";
+    public static final String KEY_ROWS_REMAINING = "rows_remaining";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method returning the
+     * bounds of the change log: KEY_CHANGE_LOG_COMPACTED_SEQ and KEY_CHANGE_LOG_LAST_SEQ.
+     */
+    public static final String METHOD_GET_CHANGE_LOG_STATE = "get_change_log_state";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method that drops
+     * every change superseded by a later change of the same pet. The optional argument is a
+     * sequence number, as a decimal string, up to which the log is truncated altogether,
+     * tombstones included, once every consumer has read past it. Returns KEY_ROWS_DELETED.
+     */
+    public static final String METHOD_COMPACT_CHANGES = "compact_changes";
+
+    /**
+     * Deltas are only complete after this sequence number. A consumer that last read an earlier
+     * one has to read the whole pets table again.
+     */
+    public static final String KEY_CHANGE_LOG_COMPACTED_SEQ = "compacted_seq";
+
+    /**
+     * Sequence number of the latest change, where a consumer that has just read the whole
+     * pets table starts reading deltas from.
+     */
+    public static final String KEY_CHANGE_LOG_LAST_SEQ = "last_seq";
+
+    /**
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} method that sets the
+     * photo of the pet whose URI is the argument, copying it from the URI held by the extras
+     * under KEY_PHOTO_SOURCE. Without a source, the pet's photo is removed. Copying can take a
+     * while, so call it off the main thread.
+     */
+    public static final String METHOD_SET_PHOTO = "set_photo";
+
+    public static final String KEY_PHOTO_SOURCE = "photo_source";
+
+    public static final String KEY_CACHE_HITS = "hits";
+    public static final String KEY_CACHE_MISSES = "misses";
+    public static final String KEY_CACHE_EVICTIONS = "evictions";
+    public static final String KEY_CACHE_SIZE_BYTES = "size_bytes";
+    public static final String KEY_CACHE_MAX_SIZE_BYTES = "max_size_bytes";
 
     public static final class PetEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * URI for full-text search over pet names and breeds, see {@link #buildSearchUri(String)}.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SEARCH);
+
         public static final String TABLE_NAME = "pets";
 
+        /**
+         * Full-text index mirroring the name and breed of every pet, keyed on the pet's _id.
+         */
+        public static final String FTS_TABLE_NAME = "pets_fts";
+
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
         public static final String COLUMN__PET_BREED = "breed";
         public static final String COLUMN_PET_GENDER = "gender";
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * When the pet's photo was last set, in milliseconds since the epoch, or 0 if the pet
+         * has no photo. The photo itself is read from {@link #buildPhotoUri(long)}; this column
+         * tells when a copy of it is out of date.
+         */
+        public static final String COLUMN_PET_PHOTO_UPDATED = "photo_updated";
+
+        /**
+         * Build the URI of the given pet's photo. Open it for reading with
+         * {@link ContentResolver#openFileDescriptor(Uri, String)}, and set it with
+         * {@link PetContract#METHOD_SET_PHOTO}.
+         */
+        public static Uri buildPhotoUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        /**
+         * MIME type of photos, which are kept in whatever image format they were set in
+         */
+        public static final String PHOTO_TYPE = "image/*";
+
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
@@ -41,6 +167,149 @@ public final class PetContract {
             return false;
         }
 
+        /**
+         * Query parameter that turns a query on {@link #CONTENT_URI} into a paged query returning
+         * at most this many pets.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter naming the column pets are ordered on: {@link #_ID} (the default),
+         * {@link #COLUMN_PET_NAME} or {@link #COLUMN_PET_WEIGHT}. Paged queries always order on
+         * it, other queries only when they have no sort order of their own.
+         */
+        public static final String QUERY_PARAMETER_PAGE_KEY = "page_key";
+
+        /**
+         * Query parameter giving the direction of the page key order, {@link #ORDER_ASCENDING}
+         * (the default) or {@link #ORDER_DESCENDING}.
+         */
+        public static final String QUERY_PARAMETER_ORDER = "order";
+
+        public static final String ORDER_ASCENDING = "asc";
+        public static final String ORDER_DESCENDING = "desc";
+
+        /**
+         * Query parameter that, set to true, makes a query on {@link #CONTENT_URI} return its
+         * rows copied into memory up front, as primitive arrays with every distinct name and
+         * breed stored once. Moving through it then never goes back to the database, which
+         * suits lists that scroll over the same rows. Ignored for projections with columns
+         * other than the pet's own.
+         */
+        public static final String QUERY_PARAMETER_SNAPSHOT = "snapshot";
+
+        /**
+         * Query parameters narrowing a query on {@link #CONTENT_URI} to the pets of one gender,
+         * a weight range (both ends included) or one breed. They can be combined with each other,
+         * with paging and with a selection.
+         */
+        public static final String QUERY_PARAMETER_GENDER = "gender";
+        public static final String QUERY_PARAMETER_MIN_WEIGHT = "min_weight";
+        public static final String QUERY_PARAMETER_MAX_WEIGHT = "max_weight";
+        public static final String QUERY_PARAMETER_BREED = "breed";
+
+        /**
+         * Query parameter holding the page key value of the last pet of the previous page.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter holding the _id of the last pet of the previous page, used to break
+         * ties between pets that share the same page key value.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * Build the URI of the first page of pets ordered on the given page key column.
+         */
+        public static Uri buildPageUri(String pageKey, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_PAGE_KEY, pageKey)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI of the page that follows the pet with the given page key value and _id,
+         * keeping every other parameter of the given page URI.
+         */
+        public static Uri buildNextPageUri(Uri pageUri, String afterKey, long afterId) {
+            Uri.Builder builder = pageUri.buildUpon().clearQuery();
+            for (String name : pageUri.getQueryParameterNames()) {
+                if (!name.equals(QUERY_PARAMETER_AFTER) && !name.equals(QUERY_PARAMETER_AFTER_ID)) {
+                    builder.appendQueryParameter(name, pageUri.getQueryParameter(name));
+                }
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_AFTER, afterKey)
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * Query parameter holding the text typed by the user for a search.
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Build the URI that searches pets whose name or breed has words starting with the words
+         * of the given text. Results are ranked with name matches first.
+         */
+        public static Uri buildSearchUri(String text) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SEARCH, text)
+                    .build();
+        }
+
+        /**
+         * URI for pets whose name is spelled almost like a given one, see
+         * {@link #buildSimilarUri(String, String)}.
+         */
+        public static final Uri CONTENT_SIMILAR_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SIMILAR);
+
+        /**
+         * Query parameter holding the name of the pet to find similar pets for.
+         */
+        public static final String QUERY_PARAMETER_NAME = "name";
+
+        /**
+         * How similar a pet is to the one looked up, from 0 to 1. Only in the rows of
+         * {@link #CONTENT_SIMILAR_URI}, which always have the pet columns and this one whatever
+         * the projection.
+         */
+        public static final String COLUMN_SIMILARITY = "similarity";
+
+        /**
+         * Build the URI that finds the pets most likely to be the same animal as a new pet of
+         * the given name and breed, most similar first, for example to warn about a pet being
+         * entered twice. The breed may be null.
+         */
+        public static Uri buildSimilarUri(String name, String breed, int limit) {
+            Uri.Builder builder = CONTENT_SIMILAR_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_NAME, name)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (breed != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_BREED, breed);
+            }
+            return builder.build();
+        }
+
+        /**
+         * URI streaming every pet out as a file. Open it with
+         * {@link ContentResolver#openTypedAssetFileDescriptor(Uri, String, android.os.Bundle)}
+         * and {@link #EXPORT_CSV_TYPE} or {@link #EXPORT_JSON_TYPE}, or with
+         * {@link ContentResolver#openInputStream(Uri)} and a {@link #QUERY_PARAMETER_FORMAT}
+         * parameter, which defaults to CSV.
+         */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_EXPORT);
+
+        public static final String EXPORT_CSV_TYPE = "text/csv";
+        public static final String EXPORT_JSON_TYPE = "application/json";
+
+        /**
+         * Query parameter of {@link #CONTENT_EXPORT_URI} choosing the file format, csv or json.
+         */
+        public static final String QUERY_PARAMETER_FORMAT = "format";
+
         public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
                     CONTENT_AUTHORITY + "/" + PATH_PETS;
 
@@ -48,4 +317,203 @@ public final class PetContract {
                     CONTENT_AUTHORITY + "/" + PATH_PETS;
     }
 
+    /**
+     * Aggregate statistics over all pets. They are kept up to date as pets are written, so
+     * reading them costs the same however many pets there are.
+     */
+    public static final class StatsEntry {
+
+        /**
+         * One row with the number of pets and their minimum, average and maximum weight.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STATS);
+
+        /**
+         * One row per gender with the number of pets of that gender.
+         */
+        public static final Uri CONTENT_GENDERS_URI = Uri.withAppendedPath(CONTENT_URI, "genders");
+
+        /**
+         * One row per breed with the number of pets of that breed, most common first. Pets without
+         * a breed are counted under the empty string.
+         */
+        public static final Uri CONTENT_BREEDS_URI = Uri.withAppendedPath(CONTENT_URI, "breeds");
+
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_MIN_WEIGHT = "min_weight";
+        public static final String COLUMN_AVG_WEIGHT = "avg_weight";
+        public static final String COLUMN_MAX_WEIGHT = "max_weight";
+        public static final String COLUMN_GENDER = PetEntry.COLUMN_PET_GENDER;
+        public static final String COLUMN_BREED = PetEntry.COLUMN__PET_BREED;
+
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_STATS;
+    }
+
+    /**
+     * Append-only log of every insert, update and delete of a pet, numbered by an increasing
+     * sequence number. A consumer reads the whole pets table once, remembers
+     * {@link PetContract#KEY_CHANGE_LOG_LAST_SEQ}, and from then on only reads the changes
+     * after the last sequence number it has seen, whenever {@link PetEntry#CONTENT_URI} notifies.
+     * <p>
+     * Every row carries the pet's values after the change, photo timestamp included, or only
+     * its ID for a delete.
+     * Compaction keeps only the latest change of each pet, so consumers should apply inserts
+     * and updates alike as "insert or replace".
+     */
+    public static final class ChangeEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_CHANGES);
+
+        public static final String TABLE_NAME = "pet_changes";
+
+        public static final String COLUMN_SEQ = "seq";
+        public static final String COLUMN_PET_ID = "pet_id";
+
+        /**
+         * One of OP_INSERT, OP_UPDATE or OP_DELETE
+         */
+        public static final String COLUMN_OP = "op";
+
+        public static final int OP_INSERT = 1;
+        public static final int OP_UPDATE = 2;
+        public static final int OP_DELETE = 3;
+
+        /**
+         * Query parameter holding the sequence number to read the changes after, 0 by default.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter capping the number of changes returned. Read on from the sequence
+         * number of the last change returned.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Build the URI of the changes made after the given sequence number.
+         */
+        public static Uri buildDeltaUri(long afterSeq) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(afterSeq))
+                    .build();
+        }
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+    }
+
+    /**
+     * How far each interrupted import has got, one row per intake file. A chunk of an import
+     * records its checkpoint in the same transaction as its pets, see
+     * {@link #buildChunkUri(String, int)}, so resuming never inserts a pet twice or skips one.
+     */
+    public static final class ImportEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_IMPORTS);
+
+        public static final String TABLE_NAME = "import_checkpoints";
+
+        /**
+         * The URI of the file being imported
+         */
+        public static final String COLUMN_SOURCE = "source";
+
+        /**
+         * Records of the file committed so far, including rejected ones
+         */
+        public static final String COLUMN_RECORDS_DONE = "records_done";
+
+        /**
+         * Query parameters of a bulk insert into {@link PetEntry#CONTENT_URI} naming the import
+         * the chunk belongs to, and its checkpoint once the chunk is in.
+         */
+        public static final String QUERY_PARAMETER_SOURCE = "import_source";
+        public static final String QUERY_PARAMETER_RECORDS_DONE = "import_records_done";
+
+        /**
+         * Build the URI to bulk insert a chunk of the given import into, so the checkpoint
+         * commits together with the chunk.
+         */
+        public static Uri buildChunkUri(String source, int recordsDone) {
+            return PetEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SOURCE, source)
+                    .appendQueryParameter(QUERY_PARAMETER_RECORDS_DONE, String.valueOf(recordsDone))
+                    .build();
+        }
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_IMPORTS;
+    }
+
+    /**
+     * Latency and row counters of the provider's own calls since the process started, one row
+     * per operation and kind of URI that has been called.
+     */
+    public static final class MetricsEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_METRICS);
+
+        /**
+         * query, insert, update or delete
+         */
+        public static final String COLUMN_OPERATION = "operation";
+
+        /**
+         * pets for the whole table, pet_id for a single pet, other for every other URI
+         */
+        public static final String COLUMN_URI = "uri";
+
+        public static final String COLUMN_CALLS = "calls";
+        public static final String COLUMN_ERRORS = "errors";
+
+        /**
+         * Rows returned by queries, or touched by writes, over all calls
+         */
+        public static final String COLUMN_ROWS = "rows";
+        public static final String COLUMN_MAX_ROWS = "max_rows";
+
+        /**
+         * Latencies in microseconds. Percentiles are the upper bound of their histogram bucket.
+         */
+        public static final String COLUMN_MEAN_US = "mean_us";
+        public static final String COLUMN_P50_US = "p50_us";
+        public static final String COLUMN_P99_US = "p99_us";
+        public static final String COLUMN_MAX_US = "max_us";
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_METRICS;
+    }
+
+    /**
+     * The most recent statements that ran over the slow-query threshold, oldest first.
+     */
+    public static final class SlowQueryEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SLOW_QUERIES);
+
+        /**
+         * When the statement finished, in milliseconds since the epoch
+         */
+        public static final String COLUMN_TIME = "time";
+
+        /**
+         * The statement with its ? placeholders. Argument values are not recorded.
+         */
+        public static final String COLUMN_SQL = "sql";
+        public static final String COLUMN_BIND_ARG_COUNT = "bind_arg_count";
+        public static final String COLUMN_DURATION_US = "duration_us";
+
+        /**
+         * EXPLAIN QUERY PLAN output, one step per line
+         */
+        public static final String COLUMN_PLAN = "plan";
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_SLOW_QUERIES;
+    }
+
 }
@@ -1,11 +1,21 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.v4.os.TraceCompat;
 
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.ImportEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
 
+import java.util.Locale;
+
 /**
  * Created by Francislainy on 14/02/2017.
  */
@@ -13,29 +23,588 @@ import com.example.android.pets.data.PetContract.PetEntry;
 public class PetDbHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "shelter.db";
-    private static final int DATABASE_VERSION = 1;
+
+    /**
+     * Schema migrations, in order. MIGRATIONS[i] upgrades the database from version i + 1 to
+     * version i + 2, so adding a migration to the end also means bumping DATABASE_VERSION.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // 1 -> 2: covering index for the catalog projection (_id, name, breed), which also
+            // serves the catalog's pages ordered on name.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + INDEX_PETS_NAME_BREED + " ON " +
+                            PetEntry.TABLE_NAME + " (" +
+                            PetEntry.COLUMN_PET_NAME + ", " +
+                            PetEntry.COLUMN__PET_BREED + ")");
+                }
+            },
+            // 2 -> 3: index for filtering on gender and weight.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + INDEX_PETS_GENDER_WEIGHT + " ON " +
+                            PetEntry.TABLE_NAME + " (" +
+                            PetEntry.COLUMN_PET_GENDER + ", " +
+                            PetEntry.COLUMN_PET_WEIGHT + ")");
+                }
+            },
+            // 3 -> 4: full-text index over name and breed, kept in sync with the pets table by
+            // triggers so every write path updates it.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE " + PetEntry.FTS_TABLE_NAME + " USING fts4(" +
+                            PetEntry.COLUMN_PET_NAME + ", " +
+                            PetEntry.COLUMN__PET_BREED + ")");
+
+                    db.execSQL("INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, " +
+                            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN__PET_BREED + ") " +
+                            "SELECT " + PetEntry._ID + ", " +
+                            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN__PET_BREED +
+                            " FROM " + PetEntry.TABLE_NAME);
+
+                    String insertFts = "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, " +
+                            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN__PET_BREED + ") " +
+                            "VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME +
+                            ", new." + PetEntry.COLUMN__PET_BREED + "); ";
+                    String deleteFts = "DELETE FROM " + PetEntry.FTS_TABLE_NAME +
+                            " WHERE docid = old." + PetEntry._ID + "; ";
+
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " + insertFts + "END");
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF " +
+                            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN__PET_BREED +
+                            " ON " + PetEntry.TABLE_NAME + " BEGIN " + deleteFts + insertFts + "END");
+                    db.execSQL("CREATE TRIGGER pets_fts_delete AFTER DELETE ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " + deleteFts + "END");
+                }
+            },
+            // 4 -> 5: the catalog rows now carry gender and weight so they can open the editor
+            // directly, widen the catalog's covering index to match.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX " + INDEX_PETS_NAME_BREED);
+                    db.execSQL("CREATE INDEX " + INDEX_PETS_CATALOG + " ON " +
+                            PetEntry.TABLE_NAME + " (" +
+                            PetEntry.COLUMN_PET_NAME + ", " +
+                            PetEntry.COLUMN__PET_BREED + ", " +
+                            PetEntry.COLUMN_PET_GENDER + ", " +
+                            PetEntry.COLUMN_PET_WEIGHT + ")");
+                }
+            },
+            // 5 -> 6: rollup tables behind the stats URIs, backfilled from the existing pets and
+            // then kept up to date by triggers on every insert, update and delete.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + TABLE_GENDER_COUNTS + " (" +
+                            PetEntry.COLUMN_PET_GENDER + " INTEGER PRIMARY KEY, " +
+                            COLUMN_COUNT + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE TABLE " + TABLE_BREED_COUNTS + " (" +
+                            PetEntry.COLUMN__PET_BREED + " TEXT PRIMARY KEY NOT NULL, " +
+                            COLUMN_COUNT + " INTEGER NOT NULL)");
+                    // Keyed on weight, so the lightest and heaviest pet are found by the primary
+                    // key alone.
+                    db.execSQL("CREATE TABLE " + TABLE_WEIGHT_COUNTS + " (" +
+                            PetEntry.COLUMN_PET_WEIGHT + " INTEGER PRIMARY KEY, " +
+                            COLUMN_COUNT + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE TABLE " + TABLE_TOTALS + " (" +
+                            COLUMN_PET_COUNT + " INTEGER NOT NULL, " +
+                            COLUMN_WEIGHT_SUM + " INTEGER NOT NULL)");
+
+                    db.execSQL("INSERT INTO " + TABLE_GENDER_COUNTS +
+                            " SELECT " + PetEntry.COLUMN_PET_GENDER + ", COUNT(*) FROM " +
+                            PetEntry.TABLE_NAME + " GROUP BY " + PetEntry.COLUMN_PET_GENDER);
+                    db.execSQL("INSERT INTO " + TABLE_BREED_COUNTS +
+                            " SELECT IFNULL(" + PetEntry.COLUMN__PET_BREED + ", ''), COUNT(*) FROM " +
+                            PetEntry.TABLE_NAME + " GROUP BY IFNULL(" + PetEntry.COLUMN__PET_BREED + ", '')");
+                    db.execSQL("INSERT INTO " + TABLE_WEIGHT_COUNTS +
+                            " SELECT " + PetEntry.COLUMN_PET_WEIGHT + ", COUNT(*) FROM " +
+                            PetEntry.TABLE_NAME + " GROUP BY " + PetEntry.COLUMN_PET_WEIGHT);
+                    db.execSQL("INSERT INTO " + TABLE_TOTALS +
+                            " SELECT COUNT(*), IFNULL(SUM(" + PetEntry.COLUMN_PET_WEIGHT + "), 0) FROM " +
+                            PetEntry.TABLE_NAME);
+
+                    String gender = PetEntry.COLUMN_PET_GENDER;
+                    String breed = PetEntry.COLUMN__PET_BREED;
+                    String weight = PetEntry.COLUMN_PET_WEIGHT;
+
+                    db.execSQL("CREATE TRIGGER pets_stats_insert AFTER INSERT ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " +
+                            incrementCount(TABLE_GENDER_COUNTS, gender, "new." + gender) +
+                            incrementCount(TABLE_BREED_COUNTS, breed, "IFNULL(new." + breed + ", '')") +
+                            incrementCount(TABLE_WEIGHT_COUNTS, weight, "new." + weight) +
+                            "UPDATE " + TABLE_TOTALS + " SET " +
+                            COLUMN_PET_COUNT + " = " + COLUMN_PET_COUNT + " + 1, " +
+                            COLUMN_WEIGHT_SUM + " = " + COLUMN_WEIGHT_SUM + " + new." + weight + "; " +
+                            "END");
+                    db.execSQL("CREATE TRIGGER pets_stats_delete AFTER DELETE ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " +
+                            decrementCount(TABLE_GENDER_COUNTS, gender, "old." + gender) +
+                            decrementCount(TABLE_BREED_COUNTS, breed, "IFNULL(old." + breed + ", '')") +
+                            decrementCount(TABLE_WEIGHT_COUNTS, weight, "old." + weight) +
+                            "UPDATE " + TABLE_TOTALS + " SET " +
+                            COLUMN_PET_COUNT + " = " + COLUMN_PET_COUNT + " - 1, " +
+                            COLUMN_WEIGHT_SUM + " = " + COLUMN_WEIGHT_SUM + " - old." + weight + "; " +
+                            "END");
+
+                    // Partial updates only move the rollups of the columns they change
+                    db.execSQL("CREATE TRIGGER pets_stats_update_gender AFTER UPDATE OF " + gender +
+                            " ON " + PetEntry.TABLE_NAME +
+                            " WHEN old." + gender + " IS NOT new." + gender + " BEGIN " +
+                            decrementCount(TABLE_GENDER_COUNTS, gender, "old." + gender) +
+                            incrementCount(TABLE_GENDER_COUNTS, gender, "new." + gender) +
+                            "END");
+                    db.execSQL("CREATE TRIGGER pets_stats_update_breed AFTER UPDATE OF " + breed +
+                            " ON " + PetEntry.TABLE_NAME +
+                            " WHEN IFNULL(old." + breed + ", '') IS NOT IFNULL(new." + breed + ", '') BEGIN " +
+                            decrementCount(TABLE_BREED_COUNTS, breed, "IFNULL(old." + breed + ", '')") +
+                            incrementCount(TABLE_BREED_COUNTS, breed, "IFNULL(new." + breed + ", '')") +
+                            "END");
+                    db.execSQL("CREATE TRIGGER pets_stats_update_weight AFTER UPDATE OF " + weight +
+                            " ON " + PetEntry.TABLE_NAME +
+                            " WHEN old." + weight + " IS NOT new." + weight + " BEGIN " +
+                            decrementCount(TABLE_WEIGHT_COUNTS, weight, "old." + weight) +
+                            incrementCount(TABLE_WEIGHT_COUNTS, weight, "new." + weight) +
+                            "UPDATE " + TABLE_TOTALS + " SET " + COLUMN_WEIGHT_SUM + " = " +
+                            COLUMN_WEIGHT_SUM + " - old." + weight + " + new." + weight + "; " +
+                            "END");
+                }
+            },
+            // 6 -> 7: index for the catalog sorted and paged on weight.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + INDEX_PETS_WEIGHT + " ON " +
+                            PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_WEIGHT + ")");
+                }
+            },
+            // 7 -> 8: append-only log of every change to a pet, written by triggers so every
+            // write path records its changes, and read through the changes URI.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    // AUTOINCREMENT, so sequence numbers are never reused after compaction
+                    db.execSQL("CREATE TABLE " + ChangeEntry.TABLE_NAME + " (" +
+                            ChangeEntry.COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            ChangeEntry.COLUMN_PET_ID + " INTEGER NOT NULL, " +
+                            ChangeEntry.COLUMN_OP + " INTEGER NOT NULL, " +
+                            PetEntry.COLUMN_PET_NAME + " TEXT, " +
+                            PetEntry.COLUMN__PET_BREED + " TEXT, " +
+                            PetEntry.COLUMN_PET_GENDER + " INTEGER, " +
+                            PetEntry.COLUMN_PET_WEIGHT + " INTEGER)");
+                    // Lets compaction find the latest change of each pet
+                    db.execSQL("CREATE INDEX " + INDEX_PET_CHANGES_PET_ID + " ON " +
+                            ChangeEntry.TABLE_NAME + " (" + ChangeEntry.COLUMN_PET_ID + ")");
+
+                    db.execSQL("CREATE TABLE " + TABLE_CHANGE_LOG + " (" +
+                            COLUMN_COMPACTED_SEQ + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + TABLE_CHANGE_LOG + " VALUES (0)");
+
+                    String logChange = "INSERT INTO " + ChangeEntry.TABLE_NAME + " (" +
+                            ChangeEntry.COLUMN_PET_ID + ", " + ChangeEntry.COLUMN_OP + ", " +
+                            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN__PET_BREED + ", " +
+                            PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") " +
+                            "VALUES (new." + PetEntry._ID + ", %d, new." + PetEntry.COLUMN_PET_NAME +
+                            ", new." + PetEntry.COLUMN__PET_BREED + ", new." + PetEntry.COLUMN_PET_GENDER +
+                            ", new." + PetEntry.COLUMN_PET_WEIGHT + "); ";
+
+                    db.execSQL("CREATE TRIGGER pets_changes_insert AFTER INSERT ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " +
+                            String.format(Locale.US, logChange, ChangeEntry.OP_INSERT) + "END");
+                    db.execSQL("CREATE TRIGGER pets_changes_update AFTER UPDATE ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " +
+                            String.format(Locale.US, logChange, ChangeEntry.OP_UPDATE) + "END");
+                    // Deletes leave a tombstone carrying only the pet's ID
+                    db.execSQL("CREATE TRIGGER pets_changes_delete AFTER DELETE ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " +
+                            "INSERT INTO " + ChangeEntry.TABLE_NAME + " (" +
+                            ChangeEntry.COLUMN_PET_ID + ", " + ChangeEntry.COLUMN_OP + ") " +
+                            "VALUES (old." + PetEntry._ID + ", " + ChangeEntry.OP_DELETE + "); " +
+                            "END");
+                }
+            },
+            // 8 -> 9: photo timestamps. The catalog rows read it to key their thumbnails, so
+            // it joins the catalog's covering index, and the change log carries it so that
+            // consumers see new photos.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                            PetEntry.COLUMN_PET_PHOTO_UPDATED + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + ChangeEntry.TABLE_NAME + " ADD COLUMN " +
+                            PetEntry.COLUMN_PET_PHOTO_UPDATED + " INTEGER");
+
+                    String logChange = "INSERT INTO " + ChangeEntry.TABLE_NAME + " (" +
+                            ChangeEntry.COLUMN_PET_ID + ", " + ChangeEntry.COLUMN_OP + ", " +
+                            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN__PET_BREED + ", " +
+                            PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                            PetEntry.COLUMN_PET_PHOTO_UPDATED + ") " +
+                            "VALUES (new." + PetEntry._ID + ", %d, new." + PetEntry.COLUMN_PET_NAME +
+                            ", new." + PetEntry.COLUMN__PET_BREED + ", new." + PetEntry.COLUMN_PET_GENDER +
+                            ", new." + PetEntry.COLUMN_PET_WEIGHT +
+                            ", new." + PetEntry.COLUMN_PET_PHOTO_UPDATED + "); ";
+
+                    db.execSQL("DROP TRIGGER pets_changes_insert");
+                    db.execSQL("CREATE TRIGGER pets_changes_insert AFTER INSERT ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " +
+                            String.format(Locale.US, logChange, ChangeEntry.OP_INSERT) + "END");
+                    db.execSQL("DROP TRIGGER pets_changes_update");
+                    db.execSQL("CREATE TRIGGER pets_changes_update AFTER UPDATE ON " +
+                            PetEntry.TABLE_NAME + " BEGIN " +
+                            String.format(Locale.US, logChange, ChangeEntry.OP_UPDATE) + "END");
+
+                    db.execSQL("DROP INDEX " + INDEX_PETS_CATALOG);
+                    db.execSQL("CREATE INDEX " + INDEX_PETS_CATALOG + " ON " +
+                            PetEntry.TABLE_NAME + " (" +
+                            PetEntry.COLUMN_PET_NAME + ", " +
+                            PetEntry.COLUMN__PET_BREED + ", " +
+                            PetEntry.COLUMN_PET_GENDER + ", " +
+                            PetEntry.COLUMN_PET_WEIGHT + ", " +
+                            PetEntry.COLUMN_PET_PHOTO_UPDATED + ")");
+                }
+            },
+            // 9 -> 10: trigram index of the names behind the similar pets URI. The provider
+            // indexes each name it writes, see PetTrigramIndex, so the existing pets are
+            // indexed here once.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + PetTrigramIndex.TABLE_TRIGRAMS + " (" +
+                            PetTrigramIndex.COLUMN_TRIGRAM + " TEXT NOT NULL, " +
+                            PetTrigramIndex.COLUMN_PET_ID + " INTEGER NOT NULL)");
+                    // Covers the lookups by trigram, the other one the reindexing of a pet
+                    db.execSQL("CREATE UNIQUE INDEX " + PetTrigramIndex.INDEX_TRIGRAMS + " ON " +
+                            PetTrigramIndex.TABLE_TRIGRAMS + " (" +
+                            PetTrigramIndex.COLUMN_TRIGRAM + ", " +
+                            PetTrigramIndex.COLUMN_PET_ID + ")");
+                    db.execSQL("CREATE INDEX " + PetTrigramIndex.INDEX_TRIGRAMS_PET_ID + " ON " +
+                            PetTrigramIndex.TABLE_TRIGRAMS + " (" + PetTrigramIndex.COLUMN_PET_ID + ")");
+
+                    db.execSQL("CREATE TABLE " + PetTrigramIndex.TABLE_TRIGRAM_COUNTS + " (" +
+                            PetTrigramIndex.COLUMN_TRIGRAM + " TEXT PRIMARY KEY, " +
+                            PetTrigramIndex.COLUMN_COUNT + " INTEGER NOT NULL)");
+
+                    // Pets leave the index however they are deleted, even by a raw DELETE
+                    StringBuilder trigger = new StringBuilder("CREATE TRIGGER pets_trigrams_delete " +
+                            "AFTER DELETE ON " + PetEntry.TABLE_NAME + " BEGIN ");
+                    for (String sql : PetTrigramIndex.removeStatements("old." + PetEntry._ID)) {
+                        trigger.append(sql).append("; ");
+                    }
+                    db.execSQL(trigger.append("END").toString());
+
+                    SQLiteStatement insertPosting =
+                            db.compileStatement(PetTrigramIndex.SQL_INSERT_POSTING);
+                    SQLiteStatement insertCount =
+                            db.compileStatement(PetTrigramIndex.SQL_INSERT_COUNT);
+                    SQLiteStatement incrementCount =
+                            db.compileStatement(PetTrigramIndex.SQL_INCREMENT_COUNT);
+                    Cursor pets = db.rawQuery("SELECT " + PetEntry._ID + ", " +
+                            PetEntry.COLUMN_PET_NAME + " FROM " + PetEntry.TABLE_NAME, null);
+                    try {
+                        while (pets.moveToNext()) {
+                            PetTrigramIndex.add(insertPosting, insertCount, incrementCount,
+                                    pets.getLong(0), pets.getString(1));
+                        }
+                    } finally {
+                        pets.close();
+                        insertPosting.close();
+                        insertCount.close();
+                        incrementCount.close();
+                    }
+                }
+            },
+            // 10 -> 11: import checkpoints, written in the transaction of each imported chunk.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + ImportEntry.TABLE_NAME + " (" +
+                            ImportEntry.COLUMN_SOURCE + " TEXT PRIMARY KEY, " +
+                            ImportEntry.COLUMN_RECORDS_DONE + " INTEGER NOT NULL)");
+                }
+            },
+    };
+
+    static final int DATABASE_VERSION = 11;
+
+    /**
+     * The version 1 schema, which every database starts from
+     */
+    static final String SQL_CREATE_PETS_TABLE =
+            "CREATE TABLE " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
+                    PetEntry.COLUMN__PET_BREED + " TEXT, " +
+                    PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+                    PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0)";
+
+    static final String INDEX_PETS_NAME_BREED = "pets_name_breed_idx";
+    static final String INDEX_PETS_GENDER_WEIGHT = "pets_gender_weight_idx";
+    static final String INDEX_PETS_CATALOG = "pets_catalog_idx";
+    static final String INDEX_PETS_WEIGHT = "pets_weight_idx";
+    static final String INDEX_PET_CHANGES_PET_ID = "pet_changes_pet_id_idx";
+
+    /**
+     * Single row table holding the sequence number up to which the change log has been
+     * truncated. Deltas from before it are incomplete.
+     */
+    static final String TABLE_CHANGE_LOG = "pet_change_log";
+    static final String COLUMN_COMPACTED_SEQ = "compacted_seq";
+
+    static final String TABLE_GENDER_COUNTS = "pet_gender_counts";
+    static final String TABLE_BREED_COUNTS = "pet_breed_counts";
+    static final String TABLE_WEIGHT_COUNTS = "pet_weight_counts";
+    static final String TABLE_TOTALS = "pet_totals";
+
+    static final String COLUMN_COUNT = "count";
+    static final String COLUMN_PET_COUNT = "pet_count";
+    static final String COLUMN_WEIGHT_SUM = "weight_sum";
+
+    /**
+     * Trigger statements adding one to the count of the given key in a rollup table.
+     */
+    private static String incrementCount(String table, String keyColumn, String key) {
+        return "INSERT OR IGNORE INTO " + table + " VALUES (" + key + ", 0); " +
+                "UPDATE " + table + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT + " + 1" +
+                " WHERE " + keyColumn + " = " + key + "; ";
+    }
+
+    /**
+     * Trigger statements taking one off the count of the given key in a rollup table, dropping
+     * the key once nothing is left, so MIN and MAX over the keys stay exact.
+     */
+    private static String decrementCount(String table, String keyColumn, String key) {
+        return "UPDATE " + table + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT + " - 1" +
+                " WHERE " + keyColumn + " = " + key + "; " +
+                "DELETE FROM " + table + " WHERE " + keyColumn + " = " + key +
+                " AND " + COLUMN_COUNT + " <= 0; ";
+    }
+
+    /**
+     * PRAGMA auto_vacuum value of a database that only returns free pages to the file system
+     * when asked to with PRAGMA incremental_vacuum
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Most pages in use, not counting free pages, of a database from before incremental vacuum
+     * that is switched over to it. The switch rewrites the whole file with VACUUM, so it waits
+     * until a purge has emptied the database, see {@link #enableIncrementalVacuum()}.
+     */
+    private static final long MAX_VACUUM_CONVERSION_PAGES = 256;
+
+    /**
+     * One step of the schema upgrade path.
+     */
+    interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * Whether the database uses write-ahead logging rather than a rollback journal
+     */
+    private final boolean mWriteAheadLogging;
+
+    /**
+     * Number of pages the write-ahead log may grow to before SQLite checkpoints it
+     */
+    private final int mWalAutoCheckpointPages;
+
+    /**
+     * Whether the database has been opened, so only the first open is traced
+     */
+    private volatile boolean mOpened;
 
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    PetDbHelper(Context context, String name) {
+        this(context, name,
+                context.getResources().getBoolean(R.bool.config_write_ahead_logging),
+                context.getResources().getInteger(R.integer.config_wal_autocheckpoint_pages));
+    }
+
+    PetDbHelper(Context context, String name, boolean writeAheadLogging, int walAutoCheckpointPages) {
+        super(context, name, null, DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging;
+        mWalAutoCheckpointPages = walAutoCheckpointPages;
     }
 
+    /**
+     * Called before the database is created or upgraded, from Jelly Bean on.
+     */
     @Override
-    public void onCreate(SQLiteDatabase db) {
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+
+        // Only takes on a database without tables, and only before write-ahead logging is
+        // turned on, so a new database uses incremental vacuum from the start without a VACUUM
+        pragma(db, "auto_vacuum = INCREMENTAL");
+
+        // In WAL mode the framework also gives the database a pool of reader connections, so
+        // queries run alongside the single writer instead of queueing behind it.
+        if (mWriteAheadLogging) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        if (mOpened) {
+            return super.getWritableDatabase();
+        }
+        TraceCompat.beginSection("PetDbHelper.open");
+        try {
+            SQLiteDatabase db = super.getWritableDatabase();
+            mOpened = true;
+            return db;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        if (mOpened) {
+            return super.getReadableDatabase();
+        }
+        TraceCompat.beginSection("PetDbHelper.open");
+        try {
+            SQLiteDatabase db = super.getReadableDatabase();
+            mOpened = true;
+            return db;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        mOpened = false;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
 
-        String SQL_CREATE_PETS_TABLE =
-                "CREATE TABLE " + PetEntry.TABLE_NAME + " (" +
-                        PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                        PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
-                        PetEntry.COLUMN__PET_BREED + " TEXT, " +
-                        PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
-                        PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0)";
+        if (!mWriteAheadLogging) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        pragma(db, "wal_autocheckpoint = " + mWalAutoCheckpointPages);
+    }
+
+    /**
+     * Copy as much of the write-ahead log back into the database as possible without waiting
+     * for readers or writers. Returns false when the database does not use write-ahead logging.
+     */
+    public boolean checkpoint() {
+        if (!mWriteAheadLogging) {
+            return false;
+        }
+        pragma(getWritableDatabase(), "wal_checkpoint(PASSIVE)");
+        return true;
+    }
+
+    /**
+     * Switch a database from before incremental vacuum over to it, if so few of its pages are
+     * in use that the one-off VACUUM this takes is cheap. Returns whether the database now uses
+     * incremental vacuum.
+     */
+    public boolean enableIncrementalVacuum() {
+        return enableIncrementalVacuum(getWritableDatabase());
+    }
+
+    private static boolean enableIncrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) {
+            return true;
+        }
+        if (db.isReadOnly() || db.inTransaction()
+                || usedPages(db) > MAX_VACUUM_CONVERSION_PAGES) {
+            return false;
+        }
+
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+        return true;
+    }
+
+    /**
+     * Returns the number of pages holding data. The free pages left behind by deletes don't
+     * count, the VACUUM doesn't copy them.
+     */
+    private static long usedPages(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    }
 
-        db.execSQL(SQL_CREATE_PETS_TABLE);
+    /**
+     * Return the pages freed by deletes to the file system, so the database file shrinks as
+     * rows go instead of staying at its largest size. Costs about as much as the deletes that
+     * freed the pages, and does nothing until the database uses incremental vacuum.
+     */
+    public void incrementalVacuum() {
+        pragma(getWritableDatabase(), "incremental_vacuum");
+    }
 
+    /**
+     * Run a PRAGMA statement. PRAGMAs that report a value can't go through execSQL().
+     */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onCreate(SQLiteDatabase db) {
+
+        // Create the version 1 schema, then bring it up to date through the same migrations an
+        // existing install goes through, so both paths always end with the same schema.
+        TraceCompat.beginSection("PetDbHelper.create");
+        try {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                // onConfigure() does this from Jelly Bean on. Before that write-ahead logging
+                // is only turned on once the database is open, so there is still time.
+                pragma(db, "auto_vacuum = INCREMENTAL");
+            }
+            db.execSQL(SQL_CREATE_PETS_TABLE);
+
+            migrate(db, 1, DATABASE_VERSION);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        TraceCompat.beginSection("PetDbHelper.upgrade");
+        try {
+            migrate(db, oldVersion, newVersion);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
 
+    /**
+     * Upgrade the schema one version at a time from oldVersion to newVersion.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            MIGRATIONS[version - 1].migrate(db);
+        }
     }
 }
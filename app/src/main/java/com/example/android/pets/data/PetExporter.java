@@ -0,0 +1,132 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the whole pets table out as CSV or JSON.
+ *
+ * The table is read in windows of a fixed number of rows, each window starting after the last
+ * _id of the previous one, so neither the cursor nor the output ever holds more than one window
+ * however many pets there are. The CSV output has a header row and can be fed back to
+ * {@link PetImporter}.
+ */
+class PetExporter {
+
+    /**
+     * Number of pets read from the database at a time
+     */
+    private static final int WINDOW_SIZE = 1000;
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN__PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+    };
+
+    private final SQLiteDatabase mDatabase;
+
+    PetExporter(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    void writeCsv(Writer out) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i != 0) {
+                out.write(',');
+            }
+            out.write(COLUMNS[i]);
+        }
+        out.write('\n');
+
+        long lastId = 0;
+        int windowCount;
+        do {
+            Cursor cursor = queryWindow(lastId);
+            try {
+                windowCount = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    out.write(String.valueOf(lastId));
+                    out.write(',');
+                    writeCsvField(out, cursor.getString(1));
+                    out.write(',');
+                    writeCsvField(out, cursor.getString(2));
+                    out.write(',');
+                    out.write(String.valueOf(cursor.getInt(3)));
+                    out.write(',');
+                    out.write(String.valueOf(cursor.getInt(4)));
+                    out.write('\n');
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (windowCount == WINDOW_SIZE);
+
+        out.flush();
+    }
+
+    void writeJson(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+
+        long lastId = 0;
+        int windowCount;
+        do {
+            Cursor cursor = queryWindow(lastId);
+            try {
+                windowCount = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    writer.beginObject();
+                    writer.name(PetEntry._ID).value(lastId);
+                    writer.name(PetEntry.COLUMN_PET_NAME).value(cursor.getString(1));
+                    writer.name(PetEntry.COLUMN__PET_BREED).value(cursor.getString(2));
+                    writer.name(PetEntry.COLUMN_PET_GENDER).value(cursor.getInt(3));
+                    writer.name(PetEntry.COLUMN_PET_WEIGHT).value(cursor.getInt(4));
+                    writer.endObject();
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (windowCount == WINDOW_SIZE);
+
+        writer.endArray();
+        writer.flush();
+    }
+
+    private Cursor queryWindow(long afterId) {
+        return mDatabase.query(PetEntry.TABLE_NAME, COLUMNS, PetEntry._ID + " > ?",
+                new String[]{String.valueOf(afterId)}, null, null, PetEntry._ID,
+                String.valueOf(WINDOW_SIZE));
+    }
+
+    /**
+     * Write a field, quoting it if it contains a separator, a quote or a line break.
+     */
+    private static void writeCsvField(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
@@ -0,0 +1,357 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.pets.data.PetContract.ImportEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streams pets from a CSV or JSON intake file into the provider.
+ *
+ * Records are parsed one at a time and written through
+ * {@link ContentResolver#bulkInsert(android.net.Uri, ContentValues[])} in chunks, so every chunk
+ * is one transaction and memory use depends on the chunk size, not on the size of the file.
+ * Each chunk also saves how many records of the file are done as an {@link ImportEntry}
+ * checkpoint, in the same transaction, so importing the same source again resumes an
+ * interrupted import exactly where it stopped.
+ *
+ * CSV files need a header row naming the columns, JSON files hold an array of objects. Columns
+ * use the {@link PetEntry} names: name, breed, gender and weight. Gender may be given either as
+ * its number or as unknown, male or female. Records the provider would refuse are skipped and
+ * counted as rejected.
+ */
+public class PetImporter {
+
+    /**
+     * Receives the progress of an import after every committed chunk.
+     */
+    public interface ProgressListener {
+        /**
+         * @param recordsDone records of the file handled so far, including skipped ones
+         * @param inserted    pets inserted by this run so far
+         * @param rejected    records rejected by this run so far
+         */
+        void onChunkCommitted(int recordsDone, int inserted, int rejected);
+    }
+
+    /**
+     * Totals of a finished import run.
+     */
+    public static class Result {
+        public final int recordsDone;
+        public final int inserted;
+        public final int rejected;
+
+        Result(int recordsDone, int inserted, int rejected) {
+            this.recordsDone = recordsDone;
+            this.inserted = inserted;
+            this.rejected = rejected;
+        }
+    }
+
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private final ContentResolver mResolver;
+    private final int mChunkSize;
+
+    public PetImporter(ContentResolver resolver) {
+        this(resolver, DEFAULT_CHUNK_SIZE);
+    }
+
+    public PetImporter(ContentResolver resolver, int chunkSize) {
+        mResolver = resolver;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Records of the given source committed by earlier, interrupted imports, or 0.
+     */
+    public int getCheckpoint(String source) {
+        Cursor cursor = mResolver.query(ImportEntry.CONTENT_URI,
+                new String[]{ImportEntry.COLUMN_RECORDS_DONE},
+                ImportEntry.COLUMN_SOURCE + "=?", new String[]{source}, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Forget the checkpoint of the given source, once its import has finished.
+     */
+    public void clearCheckpoint(String source) {
+        mResolver.delete(ImportEntry.CONTENT_URI, ImportEntry.COLUMN_SOURCE + "=?",
+                new String[]{source});
+    }
+
+    /**
+     * Import every record of the given stream after those its checkpoint says are done. The
+     * stream is not closed, and the checkpoint is left for {@link #clearCheckpoint(String)}.
+     *
+     * @param json   true for a JSON array of objects, false for CSV with a header row
+     * @param source names the stream's file for its checkpoint, typically its URI
+     */
+    public Result importPets(InputStream in, boolean json, String source, ProgressListener listener)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        RecordSource records = json ? new JsonRecordSource(reader) : new CsvRecordSource(reader);
+
+        int skipRecords = getCheckpoint(source);
+        int recordsDone = 0;
+        while (recordsDone < skipRecords && records.next() != null) {
+            recordsDone++;
+        }
+
+        int inserted = 0;
+        int rejected = 0;
+        List<ContentValues> chunk = new ArrayList<ContentValues>(mChunkSize);
+        int chunkRecords = 0;
+        int chunkRejected = 0;
+
+        ContentValues record;
+        while ((record = records.next()) != null) {
+            chunkRecords++;
+            try {
+                PetProvider.validatePet(record);
+                chunk.add(record);
+            } catch (IllegalArgumentException e) {
+                chunkRejected++;
+            }
+
+            if (chunkRecords == mChunkSize) {
+                recordsDone += chunkRecords;
+                inserted += mResolver.bulkInsert(ImportEntry.buildChunkUri(source, recordsDone),
+                        chunk.toArray(new ContentValues[chunk.size()]));
+                rejected += chunkRejected;
+                chunk.clear();
+                chunkRecords = 0;
+                chunkRejected = 0;
+                if (listener != null) {
+                    listener.onChunkCommitted(recordsDone, inserted, rejected);
+                }
+            }
+        }
+
+        if (chunkRecords != 0) {
+            recordsDone += chunkRecords;
+            inserted += mResolver.bulkInsert(ImportEntry.buildChunkUri(source, recordsDone),
+                    chunk.toArray(new ContentValues[chunk.size()]));
+            rejected += chunkRejected;
+            if (listener != null) {
+                listener.onChunkCommitted(recordsDone, inserted, rejected);
+            }
+        }
+
+        return new Result(recordsDone, inserted, rejected);
+    }
+
+    /**
+     * Put a field read from a file into the values of a pet, converting it to the column's type.
+     * Unknown fields are ignored, and fields that don't parse are left out so that validation
+     * rejects the record if the field was required.
+     */
+    private static void putField(ContentValues values, String field, String value) {
+        if (value == null) {
+            return;
+        }
+        value = value.trim();
+
+        if (PetEntry.COLUMN_PET_NAME.equals(field)) {
+            if (value.length() != 0) {
+                values.put(PetEntry.COLUMN_PET_NAME, value);
+            }
+        } else if (PetEntry.COLUMN__PET_BREED.equals(field)) {
+            values.put(PetEntry.COLUMN__PET_BREED, value);
+        } else if (PetEntry.COLUMN_PET_GENDER.equals(field)) {
+            Integer gender = parseGender(value);
+            if (gender != null) {
+                values.put(PetEntry.COLUMN_PET_GENDER, gender);
+            }
+        } else if (PetEntry.COLUMN_PET_WEIGHT.equals(field)) {
+            Integer weight = parseInt(value);
+            if (weight != null) {
+                values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+            }
+        }
+    }
+
+    private static Integer parseGender(String value) {
+        if (value.equalsIgnoreCase("unknown") || value.length() == 0) {
+            return PetEntry.GENDER_UNKNOWN;
+        } else if (value.equalsIgnoreCase("male")) {
+            return PetEntry.GENDER_MALE;
+        } else if (value.equalsIgnoreCase("female")) {
+            return PetEntry.GENDER_FEMALE;
+        }
+        return parseInt(value);
+    }
+
+    private static Integer parseInt(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Source of the records of a file, one at a time.
+     */
+    private interface RecordSource {
+        /**
+         * Returns the next record, or null at the end of the file.
+         */
+        ContentValues next() throws IOException;
+    }
+
+    /**
+     * Reads RFC 4180 style CSV: fields separated by commas, optionally quoted, with doubled
+     * quotes inside quoted fields and line breaks allowed inside quotes.
+     */
+    private static class CsvRecordSource implements RecordSource {
+
+        private final BufferedReader mReader;
+        private List<String> mHeader;
+        private boolean mEndOfFile;
+
+        CsvRecordSource(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (mHeader == null) {
+                mHeader = readRow();
+                if (mHeader == null) {
+                    return null;
+                }
+                for (int i = 0; i < mHeader.size(); i++) {
+                    mHeader.set(i, mHeader.get(i).trim().toLowerCase(Locale.ROOT));
+                }
+            }
+
+            List<String> row;
+            do {
+                row = readRow();
+                if (row == null) {
+                    return null;
+                }
+                // Skip blank lines
+            } while (row.size() == 1 && TextUtils.isEmpty(row.get(0)));
+
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < row.size() && i < mHeader.size(); i++) {
+                putField(values, mHeader.get(i), row.get(i));
+            }
+            return values;
+        }
+
+        /**
+         * Read the fields of one row, or return null at the end of the file.
+         */
+        private List<String> readRow() throws IOException {
+            if (mEndOfFile) {
+                return null;
+            }
+
+            List<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean empty = true;
+
+            while (true) {
+                int c = mReader.read();
+                if (c == -1) {
+                    mEndOfFile = true;
+                    if (empty && fields.isEmpty()) {
+                        return null;
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                }
+                empty = false;
+
+                if (quoted) {
+                    if (c == '"') {
+                        mReader.mark(1);
+                        if (mReader.read() == '"') {
+                            field.append('"');
+                        } else {
+                            mReader.reset();
+                            quoted = false;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    fields.add(field.toString());
+                    return fields;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a JSON array of pet objects without loading the whole document.
+     */
+    private static class JsonRecordSource implements RecordSource {
+
+        private final JsonReader mReader;
+        private boolean mStarted;
+
+        JsonRecordSource(Reader reader) {
+            mReader = new JsonReader(reader);
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (!mStarted) {
+                mReader.beginArray();
+                mStarted = true;
+            }
+            if (!mReader.hasNext()) {
+                return null;
+            }
+
+            ContentValues values = new ContentValues();
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String field = mReader.nextName().toLowerCase(Locale.ROOT);
+                JsonToken token = mReader.peek();
+                if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    // nextString() reads numbers too, as text
+                    putField(values, field, mReader.nextString());
+                } else {
+                    mReader.skipValue();
+                }
+            }
+            mReader.endObject();
+            return values;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.android.pets.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * The photo files of {@link PetProvider}, one per pet, named after the pet's _id. Photos live
+ * outside the database so that rows, and the cursor windows they are read through, stay small.
+ */
+class PetPhotoStore {
+
+    /**
+     * Age after which an unfinished copy is taken for the leftover of a crash
+     */
+    private static final long STALE_COPY_MILLIS = 60 * 60 * 1000;
+
+    private final File mDirectory;
+
+    PetPhotoStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the photo file of the given pet, which may not exist.
+     */
+    File getFile(long id) {
+        return new File(mDirectory, String.valueOf(id));
+    }
+
+    /**
+     * Copy the given stream into a new file beside the photos, for
+     * {@link #moveIntoPlace(File, long)}. Until it is moved, the copy is nobody's photo and
+     * {@link #deleteAllExcept(Set)} leaves it alone. The caller deletes the copy if it is never
+     * moved.
+     */
+    File copy(InputStream in) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+
+        File copy = File.createTempFile("photo", ".tmp", mDirectory);
+        try {
+            OutputStream out = new FileOutputStream(copy);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            copy.delete();
+            throw e;
+        }
+        return copy;
+    }
+
+    /**
+     * Make the given copy the photo of the given pet. Readers either see the old photo or the
+     * complete new one, because the copy was written in full before it is moved.
+     */
+    void moveIntoPlace(File copy, long id) throws IOException {
+        if (!copy.renameTo(getFile(id))) {
+            throw new IOException("Cannot move photo of pet " + id + " into place");
+        }
+    }
+
+    void delete(long id) {
+        getFile(id).delete();
+    }
+
+    /**
+     * Delete every photo whose pet is not in the given set of IDs, or every photo when the set
+     * is null.
+     */
+    void deleteAllExcept(Set<Long> ids) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (ids == null) {
+                file.delete();
+                continue;
+            }
+            try {
+                if (!ids.contains(Long.parseLong(file.getName()))) {
+                    file.delete();
+                }
+            } catch (NumberFormatException e) {
+                // A copy that is either still being written or was left over by a crash
+                if (file.lastModified() < System.currentTimeMillis() - STALE_COPY_MILLIS) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
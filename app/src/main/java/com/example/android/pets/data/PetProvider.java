@@ -1,16 +1,63 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.Nullable;
+import android.support.v4.os.TraceCompat;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.ImportEntry;
+import com.example.android.pets.data.PetContract.MetricsEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SlowQueryEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Francislainy on 18/02/2017.
@@ -27,113 +74,1296 @@ public class PetProvider extends ContentProvider {
      */
     private PetDbHelper mDbHelper;
 
+    /**
+     * Cache of recent query results, or null when caching is turned off
+     */
+    private PetQueryCache mQueryCache;
+
     private static final int PETS = 100;
     private static final int PET_ID = 101;
+    private static final int SEARCH = 102;
+    private static final int PET_PHOTO = 103;
+    private static final int SIMILAR = 104;
+    private static final int STATS = 200;
+    private static final int STATS_GENDERS = 201;
+    private static final int STATS_BREEDS = 202;
+    private static final int EXPORT = 300;
+    private static final int CHANGES = 301;
+    private static final int IMPORTS = 302;
+    private static final int METRICS = 400;
+    private static final int SLOW_QUERIES = 401;
+
+    /**
+     * File types the export URI can be opened as, preferred first
+     */
+    private static final String[] EXPORT_TYPES = {PetEntry.EXPORT_CSV_TYPE, PetEntry.EXPORT_JSON_TYPE};
+
+    /**
+     * Directory, under the app's files directory, holding the pet photos
+     */
+    private static final String PHOTO_DIRECTORY = "photos";
+
+    /**
+     * Pets deleted per {@link PetContract#METHOD_PURGE_CHUNK} call when the caller doesn't say
+     */
+    private static final int DEFAULT_PURGE_CHUNK_SIZE = 500;
+
+    private static final String SQL_PURGE_CHUNK_IDS =
+            "SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_PHOTO_UPDATED + " FROM " +
+                    PetEntry.TABLE_NAME + " ORDER BY " + PetEntry._ID + " LIMIT ?";
+
+    private static final String SQL_PURGE_CHUNK =
+            "DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " <= ?";
+
+    /**
+     * Similar pets returned when the caller doesn't say
+     */
+    private static final int DEFAULT_SIMILAR_LIMIT = 5;
+
+    /**
+     * Number of slow statements kept, older ones are dropped
+     */
+    private static final int SLOW_QUERY_LOG_CAPACITY = 50;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
-    static {
-        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
-        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+    static {
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_SEARCH, SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_SIMILAR, SIMILAR);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_STATS, STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_STATS + "/genders", STATS_GENDERS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_STATS + "/breeds", STATS_BREEDS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_EXPORT, EXPORT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PET_PHOTO);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_CHANGES, CHANGES);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_IMPORTS, IMPORTS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_METRICS, METRICS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_SLOW_QUERIES, SLOW_QUERIES);
+    }
+
+    /**
+     * Columns that can be requested from a search, qualified with the pets table because the
+     * full-text table has columns of the same names.
+     */
+    private static final Map<String, String> sSearchProjectionMap = new HashMap<String, String>();
+
+    static {
+        for (String column : new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN__PET_BREED, PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_PHOTO_UPDATED}) {
+            sSearchProjectionMap.put(column, PetEntry.TABLE_NAME + "." + column + " AS " + column);
+        }
+    }
+
+    /**
+     * URIs that still have to be notified once the batch running on the current thread commits,
+     * or null when the current thread is not inside {@link #applyBatch(ArrayList)}.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+
+    /**
+     * IDs of the pets the batch running on the current thread deleted, whose photos go once it
+     * commits, or null when the current thread is not inside {@link #applyBatch(ArrayList)}.
+     * Deleting them straight away would lose them for good if the batch rolled back.
+     */
+    private final ThreadLocal<Set<Long>> mPendingPhotoDeletes = new ThreadLocal<Set<Long>>();
+
+    /**
+     * Latency and row counters of every call, see {@link #dump(FileDescriptor, PrintWriter, String[])}
+     */
+    private final PetProviderMetrics mMetrics = new PetProviderMetrics();
+
+    /**
+     * Photo files of the pets
+     */
+    private PetPhotoStore mPhotoStore;
+
+    /**
+     * Writes pets through cached compiled statements
+     */
+    private PetRecordWriter mRecordWriter;
+
+    /**
+     * Group commit writer, or null while group commit is off
+     */
+    private volatile PetWriteQueue mWriteQueue;
+
+    /**
+     * Whether a query has been made yet, so only the first one is traced
+     */
+    private final AtomicBoolean mQueried = new AtomicBoolean();
+
+    /**
+     * Held while group commit is being turned on or off
+     */
+    private final Object mWriteQueueLock = new Object();
+
+    /**
+     * Record each thread converts incoming content values into, so writes don't allocate one
+     */
+    private final ThreadLocal<PetRecord> mScratchRecord = new ThreadLocal<PetRecord>() {
+        @Override
+        protected PetRecord initialValue() {
+            return new PetRecord();
+        }
+    };
+
+    /**
+     * Statements slower than the configured threshold, see {@link PetContract.SlowQueryEntry}
+     */
+    private PetSlowQueryLog mSlowQueryLog;
+
+    /**
+     * Database file to open instead of shelter.db, or null for shelter.db
+     */
+    private final String mDatabaseName;
+
+    /**
+     * Size of the query result cache, or a negative number for the configured size
+     */
+    private final int mQueryCacheMaxBytes;
+
+    public PetProvider() {
+        this(null, -1);
+    }
+
+    /**
+     * Create a provider working on its own database file, for benchmarks. Attach it to a
+     * context with {@link #attachInfo(android.content.Context, android.content.pm.ProviderInfo)}
+     * before use.
+     */
+    PetProvider(String databaseName, int queryCacheMaxBytes) {
+        mDatabaseName = databaseName;
+        mQueryCacheMaxBytes = queryCacheMaxBytes;
+    }
+
+    /**
+     * Initialize the provider and the database helper object.
+     */
+    @Override
+    public boolean onCreate() {
+        // Runs on the main thread before the first activity, and so delays the first frame
+        TraceCompat.beginSection("PetProvider.onCreate");
+        try {
+            return create();
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    private boolean create() {
+        mDbHelper = mDatabaseName == null
+                ? new PetDbHelper(getContext())
+                : new PetDbHelper(getContext(), mDatabaseName);
+        mRecordWriter = new PetRecordWriter(mDbHelper);
+        mPhotoStore = new PetPhotoStore(new File(getContext().getFilesDir(), PHOTO_DIRECTORY));
+
+        int queryCacheMaxBytes = mQueryCacheMaxBytes >= 0
+                ? mQueryCacheMaxBytes
+                : getContext().getResources().getInteger(R.integer.config_query_cache_max_bytes);
+        if (queryCacheMaxBytes > 0) {
+            mQueryCache = new PetQueryCache(queryCacheMaxBytes);
+        }
+
+        mSlowQueryLog = new PetSlowQueryLog(SLOW_QUERY_LOG_CAPACITY,
+                getContext().getResources().getInteger(R.integer.config_slow_query_threshold_ms));
+
+        if (getContext().getResources().getBoolean(R.bool.config_group_commit)) {
+            setGroupCommit(true);
+        }
+
+        // Deletes remove the photos of the pets they delete once they commit, so only a crash
+        // in between leaves any behind. Look for those once per process, off the main thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deleteOrphanPhotos(mDbHelper.getReadableDatabase());
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "Failed to delete orphan photos", e);
+                }
+            }
+        }, "PetPhotoSweep").start();
+        return true;
+    }
+
+    /**
+     * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
+     */
+    @Nullable
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        checkNotMainThread("query", uri);
+
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+
+        // The first query usually opens the database too. On a launch that is the warm-up's,
+        // the catalog's own query is traced by its loader.
+        boolean first = !mQueried.get() && mQueried.compareAndSet(false, true);
+        if (first) {
+            TraceCompat.beginSection("PetProvider.firstQuery");
+        }
+        long start = System.nanoTime();
+        try {
+            Cursor cursor = dispatchQuery(match, uri, projection, selection, selectionArgs, sortOrder);
+            mMetrics.recordSuccess(PetProviderMetrics.OPERATION_QUERY, metricsTarget(match), start,
+                    cursor.getCount());
+            return cursor;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_QUERY, metricsTarget(match), start);
+            throw e;
+        } finally {
+            if (first) {
+                TraceCompat.endSection();
+            }
+        }
+    }
+
+    private Cursor dispatchQuery(int match, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        // Metrics describe the provider itself, they are never cached
+        if (match == METRICS) {
+            return queryMetrics();
+        }
+        if (match == SLOW_QUERIES) {
+            return querySlowQueries();
+        }
+        // Checkpoints change with every imported chunk, and are read once per import
+        if (match == IMPORTS) {
+            return mDbHelper.getReadableDatabase().query(ImportEntry.TABLE_NAME, projection,
+                    selection, selectionArgs, null, null, sortOrder);
+        }
+
+        // Search results and statistics go stale whenever any pet changes
+        Uri notificationUri = match == PETS || match == PET_ID ? uri : PetEntry.CONTENT_URI;
+
+        // Serve the query from the result cache when it holds an up to date copy
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        if (mQueryCache != null) {
+            cacheKey = PetQueryCache.key(uri, projection, selection, selectionArgs, sortOrder);
+            cacheGeneration = mQueryCache.getGeneration();
+            Cursor cached = mQueryCache.get(cacheKey);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), notificationUri);
+                return cached;
+            }
+        }
+
+        Cursor cursor = queryDatabase(match, uri, projection, selection, selectionArgs, sortOrder);
+
+        // Copy the rows out now, on this binder or loader thread, rather than while scrolling
+        if (match == PETS && uri.getBooleanQueryParameter(PetEntry.QUERY_PARAMETER_SNAPSHOT, false)
+                && PetSnapshotCursor.supports(projection)) {
+            cursor = PetSnapshotCursor.fill(cursor);
+        }
+
+        if (mQueryCache != null) {
+            cursor = mQueryCache.put(cacheKey, cacheGeneration, cursor);
+        }
+
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        return cursor;
+    }
+
+    private Cursor queryDatabase(int match, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        // Get readable database
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        // This cursor will hold the result of the query
+        Cursor cursor = null;
+
+        switch (match) {
+            case PETS:
+                // A limit turns this into a paged query, which picks its own sort order.
+                if (uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT) != null) {
+                    cursor = queryPetsPage(database, uri, projection, selection, selectionArgs);
+                    break;
+                }
+                // For the PETS code, query the pets table directly with the given
+                // projection, selection, selection arguments, and sort order, narrowed by any
+                // filter parameters. The cursor could contain multiple rows of the pets table.
+                cursor = queryPets(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case PET_ID:
+                // For the PET_ID code, extract out the ID from the URI.
+                // For an example URI such as "content://com.example.android.pets/pets/3",
+                // the selection will be "_id=?" and the selection argument will be a
+                // String array containing the actual ID of 3 in this case.
+                //
+                // For every "?" in the selection, we need to have an element in the selection
+                // arguments that will fill in the "?". Since we have 1 question mark in the
+                // selection, we have 1 String in the selection arguments' String array.
+                selection = PetEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+
+                // This will perform a query on the pets table where the _id equals 3 to return a
+                // Cursor containing that row of the table.
+                cursor = queryLogged(database, SQLiteQueryBuilder.buildQueryString(false,
+                        PetEntry.TABLE_NAME, projection, selection, null, null, sortOrder, null),
+                        selectionArgs);
+                break;
+            case SEARCH:
+                cursor = searchPets(database, uri, projection);
+                break;
+            case SIMILAR:
+                cursor = findSimilarPets(database, uri);
+                break;
+            case CHANGES:
+                cursor = queryChanges(database, uri, projection);
+                break;
+            case STATS:
+                // Every value comes from a single row or a primary key lookup in the rollups
+                cursor = database.rawQuery("SELECT " +
+                        PetDbHelper.COLUMN_PET_COUNT + " AS " + StatsEntry.COLUMN_COUNT + ", " +
+                        "(SELECT MIN(" + PetEntry.COLUMN_PET_WEIGHT + ") FROM " +
+                        PetDbHelper.TABLE_WEIGHT_COUNTS + ") AS " + StatsEntry.COLUMN_MIN_WEIGHT + ", " +
+                        "CASE WHEN " + PetDbHelper.COLUMN_PET_COUNT + " = 0 THEN NULL ELSE " +
+                        "CAST(" + PetDbHelper.COLUMN_WEIGHT_SUM + " AS REAL) / " +
+                        PetDbHelper.COLUMN_PET_COUNT + " END AS " + StatsEntry.COLUMN_AVG_WEIGHT + ", " +
+                        "(SELECT MAX(" + PetEntry.COLUMN_PET_WEIGHT + ") FROM " +
+                        PetDbHelper.TABLE_WEIGHT_COUNTS + ") AS " + StatsEntry.COLUMN_MAX_WEIGHT +
+                        " FROM " + PetDbHelper.TABLE_TOTALS, null);
+                break;
+            case STATS_GENDERS:
+                cursor = database.query(PetDbHelper.TABLE_GENDER_COUNTS, new String[]{
+                                StatsEntry.COLUMN_GENDER,
+                                PetDbHelper.COLUMN_COUNT + " AS " + StatsEntry.COLUMN_COUNT},
+                        null, null, null, null, StatsEntry.COLUMN_GENDER);
+                break;
+            case STATS_BREEDS:
+                cursor = database.query(PetDbHelper.TABLE_BREED_COUNTS, new String[]{
+                                StatsEntry.COLUMN_BREED,
+                                PetDbHelper.COLUMN_COUNT + " AS " + StatsEntry.COLUMN_COUNT},
+                        null, null, null, null, PetDbHelper.COLUMN_COUNT + " DESC, " + StatsEntry.COLUMN_BREED);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Query every pet matching the selection and the filter parameters of the URI. Without a
+     * sort order, the sort parameters of the URI, if any, order the pets.
+     */
+    private Cursor queryPets(SQLiteDatabase database, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs, String sortOrder) {
+        StringBuilder where = new StringBuilder();
+        List<String> whereArgs = new ArrayList<String>();
+        appendSelection(where, whereArgs, selection, selectionArgs);
+        appendFilters(uri, where, whereArgs);
+
+        if (sortOrder == null && (uri.getQueryParameter(PetEntry.QUERY_PARAMETER_PAGE_KEY) != null
+                || uri.getQueryParameter(PetEntry.QUERY_PARAMETER_ORDER) != null)) {
+            sortOrder = buildOrderBy(getPageKey(uri), isDescending(uri));
+        }
+
+        return queryLogged(database, SQLiteQueryBuilder.buildQueryString(false,
+                PetEntry.TABLE_NAME, projection, where.length() == 0 ? null : where.toString(),
+                null, null, sortOrder, null), whereArgs.toArray(new String[whereArgs.size()]));
+    }
+
+    /**
+     * Query one page of pets using keyset pagination: rather than skipping rows with OFFSET,
+     * the page starts right after the page key value and _id of the previous page's last row,
+     * so every page costs the same no matter how deep into the table it is.
+     */
+    private Cursor queryPetsPage(SQLiteDatabase database, Uri uri, String[] projection,
+                                 String selection, String[] selectionArgs) {
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+        if (limit.length() == 0 || !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid page limit " + limit);
+        }
+
+        String pageKey = getPageKey(uri);
+        boolean descending = isDescending(uri);
+        String after = descending ? " < ?" : " > ?";
+
+        StringBuilder where = new StringBuilder();
+        List<String> whereArgs = new ArrayList<String>();
+        appendSelection(where, whereArgs, selection, selectionArgs);
+        appendFilters(uri, where, whereArgs);
+
+        String afterKey = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER);
+        if (afterKey != null) {
+            if (where.length() != 0) {
+                where.append(" AND ");
+            }
+            if (pageKey.equals(PetEntry._ID)) {
+                where.append(PetEntry._ID).append(after);
+                whereArgs.add(afterKey);
+            } else {
+                String afterId = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER_ID);
+                if (afterId == null) {
+                    throw new IllegalArgumentException("Paging on " + pageKey + " requires "
+                            + PetEntry.QUERY_PARAMETER_AFTER_ID);
+                }
+                // Written as a range on the key plus a tie-break so SQLite can seek the key index.
+                where.append(pageKey).append(descending ? " <= ?" : " >= ?").append(" AND (")
+                        .append(pageKey).append(after).append(" OR ")
+                        .append(PetEntry._ID).append(after).append(')');
+                whereArgs.add(afterKey);
+                whereArgs.add(afterKey);
+                whereArgs.add(afterId);
+            }
+        }
+
+        return queryLogged(database, SQLiteQueryBuilder.buildQueryString(false,
+                PetEntry.TABLE_NAME, projection, where.length() == 0 ? null : where.toString(),
+                null, null, buildOrderBy(pageKey, descending), limit),
+                whereArgs.toArray(new String[whereArgs.size()]));
+    }
+
+    /**
+     * Returns the column the URI asks pets to be sorted and paged on, _id by default.
+     */
+    private static String getPageKey(Uri uri) {
+        String pageKey = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_PAGE_KEY);
+        if (pageKey == null) {
+            return PetEntry._ID;
+        }
+        if (!pageKey.equals(PetEntry._ID) && !pageKey.equals(PetEntry.COLUMN_PET_NAME)
+                && !pageKey.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+            throw new IllegalArgumentException("Cannot page on " + pageKey);
+        }
+        return pageKey;
+    }
+
+    private static boolean isDescending(Uri uri) {
+        String order = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_ORDER);
+        if (order == null || order.equals(PetEntry.ORDER_ASCENDING)) {
+            return false;
+        }
+        if (order.equals(PetEntry.ORDER_DESCENDING)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Invalid order " + order);
+    }
+
+    /**
+     * Order on the page key, then on _id so pets sharing a key value keep a stable order.
+     */
+    private static String buildOrderBy(String pageKey, boolean descending) {
+        String direction = descending ? " DESC" : "";
+        return pageKey.equals(PetEntry._ID)
+                ? PetEntry._ID + direction
+                : pageKey + direction + ", " + PetEntry._ID + direction;
+    }
+
+    private static void appendSelection(StringBuilder where, List<String> whereArgs,
+                                        String selection, String[] selectionArgs) {
+        if (!TextUtils.isEmpty(selection)) {
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                whereArgs.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+    }
+
+    /**
+     * Add the filter parameters of the URI to a selection. Values are checked here and always
+     * bound as arguments, and every filter is a plain comparison on a column, which SQLite can
+     * answer from an index.
+     */
+    private static void appendFilters(Uri uri, StringBuilder where, List<String> whereArgs) {
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_GENDER);
+        if (gender != null) {
+            if (!isSmallNumber(gender) || !PetEntry.isValidGender(Integer.parseInt(gender))) {
+                throw new IllegalArgumentException("Invalid gender filter " + gender);
+            }
+            appendCondition(where, whereArgs, PetEntry.COLUMN_PET_GENDER + " = ?", gender);
+        }
+
+        String minWeight = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_MIN_WEIGHT);
+        if (minWeight != null) {
+            if (!isSmallNumber(minWeight)) {
+                throw new IllegalArgumentException("Invalid minimum weight " + minWeight);
+            }
+            appendCondition(where, whereArgs, PetEntry.COLUMN_PET_WEIGHT + " >= ?", minWeight);
+        }
+
+        String maxWeight = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_MAX_WEIGHT);
+        if (maxWeight != null) {
+            if (!isSmallNumber(maxWeight)) {
+                throw new IllegalArgumentException("Invalid maximum weight " + maxWeight);
+            }
+            appendCondition(where, whereArgs, PetEntry.COLUMN_PET_WEIGHT + " <= ?", maxWeight);
+        }
+
+        String breed = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_BREED);
+        if (breed != null) {
+            appendCondition(where, whereArgs, PetEntry.COLUMN__PET_BREED + " = ?", breed);
+        }
+    }
+
+    private static void appendCondition(StringBuilder where, List<String> whereArgs,
+                                        String condition, String arg) {
+        if (where.length() != 0) {
+            where.append(" AND ");
+        }
+        where.append(condition);
+        whereArgs.add(arg);
+    }
+
+    /**
+     * Whether the given text is a non-negative number that fits an int.
+     */
+    private static boolean isSmallNumber(String text) {
+        return text.length() != 0 && text.length() <= 9 && TextUtils.isDigitsOnly(text);
+    }
+
+    /**
+     * Query the change log after the sequence number given by the URI, oldest change first.
+     * The sequence number is the primary key, so this costs O(changes) however big the pets
+     * table is.
+     */
+    private Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection) {
+        String after = uri.getQueryParameter(ChangeEntry.QUERY_PARAMETER_AFTER);
+        if (after == null) {
+            after = "0";
+        } else if (after.length() == 0 || !TextUtils.isDigitsOnly(after)) {
+            throw new IllegalArgumentException("Invalid sequence number " + after);
+        }
+        String limit = uri.getQueryParameter(ChangeEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null && (limit.length() == 0 || !TextUtils.isDigitsOnly(limit))) {
+            throw new IllegalArgumentException("Invalid change limit " + limit);
+        }
+
+        return queryLogged(database, SQLiteQueryBuilder.buildQueryString(false,
+                ChangeEntry.TABLE_NAME, projection, ChangeEntry.COLUMN_SEQ + " > ?",
+                null, null, ChangeEntry.COLUMN_SEQ, limit), new String[]{after});
+    }
+
+    /**
+     * Search the full-text index for pets whose name or breed contain words starting with each
+     * word of the search text. Pets whose name starts with the first word rank first, then
+     * shorter names, which keeps the closest matches at the top while the user is typing.
+     */
+    private Cursor searchPets(SQLiteDatabase database, Uri uri, String[] projection) {
+        String text = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_SEARCH);
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null && (limit.length() == 0 || !TextUtils.isDigitsOnly(limit))) {
+            throw new IllegalArgumentException("Invalid search limit " + limit);
+        }
+
+        // Keep only letters and digits so user input can never be read as FTS query syntax,
+        // and turn every word into a prefix match.
+        StringBuilder match = new StringBuilder();
+        String firstWord = null;
+        if (text != null) {
+            for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+                if (word.length() == 0) {
+                    continue;
+                }
+                if (firstWord == null) {
+                    firstWord = word;
+                }
+                match.append(word).append("* ");
+            }
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(PetEntry.TABLE_NAME + " JOIN " + PetEntry.FTS_TABLE_NAME + " ON " +
+                PetEntry.TABLE_NAME + "." + PetEntry._ID + " = " + PetEntry.FTS_TABLE_NAME + ".docid");
+        builder.setProjectionMap(sSearchProjectionMap);
+        builder.setStrict(true);
+
+        if (firstWord == null) {
+            // Nothing to search for
+            return builder.query(database, projection, "0", null, null, null, null, "0");
+        }
+
+        String name = PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME;
+        String sortOrder = "(" + name + " LIKE ?) DESC, length(" + name + "), " + name;
+        String[] args = {match.toString().trim(), firstWord + "%"};
+
+        return queryLogged(database, builder.buildQuery(projection,
+                PetEntry.FTS_TABLE_NAME + " MATCH ?", null, null, sortOrder, limit), args);
+    }
+
+    /**
+     * Find the pets most likely to be the same animal as the pet named in the URI.
+     */
+    private Cursor findSimilarPets(SQLiteDatabase database, Uri uri) {
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null && (limit.length() == 0 || !TextUtils.isDigitsOnly(limit))) {
+            throw new IllegalArgumentException("Invalid similar pets limit " + limit);
+        }
+        return PetTrigramIndex.findSimilar(database, mSlowQueryLog,
+                uri.getQueryParameter(PetEntry.QUERY_PARAMETER_NAME),
+                uri.getQueryParameter(PetEntry.QUERY_PARAMETER_BREED),
+                limit == null ? DEFAULT_SIMILAR_LIMIT : Integer.parseInt(limit));
+    }
+
+    /**
+     * Run a query and log it if it was slow, see {@link PetSlowQueryLog#query}.
+     */
+    private Cursor queryLogged(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        return mSlowQueryLog.query(database, sql, selectionArgs);
+    }
+
+    /**
+     * Returns the MIME type of data for the content URI.
+     */
+    @Nullable
+    @Override
+    public String getType(Uri uri) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PET_ID:
+                return PetEntry.CONTENT_ITEM_TYPE;
+            case SEARCH:
+            case SIMILAR:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case STATS_GENDERS:
+            case STATS_BREEDS:
+                return StatsEntry.CONTENT_LIST_TYPE;
+            case PET_PHOTO:
+                return PetEntry.PHOTO_TYPE;
+            case EXPORT:
+                return PetEntry.EXPORT_CSV_TYPE;
+            case CHANGES:
+                return ChangeEntry.CONTENT_LIST_TYPE;
+            case IMPORTS:
+                return ImportEntry.CONTENT_LIST_TYPE;
+            case METRICS:
+                return MetricsEntry.CONTENT_LIST_TYPE;
+            case SLOW_QUERIES:
+                return SlowQueryEntry.CONTENT_LIST_TYPE;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri + " with match " + match);
+        }
+    }
+
+    /**
+     * Snapshot of the call metrics, one row per operation and kind of URI that has been called.
+     */
+    private Cursor queryMetrics() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                MetricsEntry.COLUMN_OPERATION, MetricsEntry.COLUMN_URI, MetricsEntry.COLUMN_CALLS,
+                MetricsEntry.COLUMN_ERRORS, MetricsEntry.COLUMN_ROWS, MetricsEntry.COLUMN_MAX_ROWS,
+                MetricsEntry.COLUMN_MEAN_US, MetricsEntry.COLUMN_P50_US, MetricsEntry.COLUMN_P99_US,
+                MetricsEntry.COLUMN_MAX_US});
+        for (int operation = 0; operation < PetProviderMetrics.OPERATION_NAMES.length; operation++) {
+            for (int target = 0; target < PetProviderMetrics.TARGET_NAMES.length; target++) {
+                PetProviderMetrics.Recorder recorder = mMetrics.recorder(operation, target);
+                if (recorder.getCalls() == 0) {
+                    continue;
+                }
+                cursor.addRow(new Object[]{
+                        PetProviderMetrics.OPERATION_NAMES[operation],
+                        PetProviderMetrics.TARGET_NAMES[target],
+                        recorder.getCalls(), recorder.getErrors(),
+                        recorder.getRows(), recorder.getMaxRows(),
+                        recorder.getMeanMicros(), recorder.getPercentileMicros(50),
+                        recorder.getPercentileMicros(99), recorder.getMaxMicros()});
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * The slow-query log, oldest statement first.
+     */
+    private Cursor querySlowQueries() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                SlowQueryEntry.COLUMN_TIME, SlowQueryEntry.COLUMN_SQL,
+                SlowQueryEntry.COLUMN_BIND_ARG_COUNT, SlowQueryEntry.COLUMN_DURATION_US,
+                SlowQueryEntry.COLUMN_PLAN});
+        for (PetSlowQueryLog.Entry entry : mSlowQueryLog.getEntries()) {
+            cursor.addRow(new Object[]{entry.timeMillis, entry.sql, entry.bindArgCount,
+                    entry.durationMicros, entry.plan});
+        }
+        return cursor;
+    }
+
+    /**
+     * Which set of metrics calls matching the given code are counted in.
+     */
+    private static int metricsTarget(int match) {
+        switch (match) {
+            case PETS:
+                return PetProviderMetrics.TARGET_PETS;
+            case PET_ID:
+                return PetProviderMetrics.TARGET_PET_ID;
+            default:
+                return PetProviderMetrics.TARGET_OTHER;
+        }
+    }
+
+    /**
+     * Print the call metrics and the query cache counters, for
+     * adb shell dumpsys activity provider com.example.android.pets/.data.PetProvider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("PetProvider calls:");
+        mMetrics.dump(writer);
+
+        writer.println();
+        mSlowQueryLog.dump(writer);
+
+        PetWriteQueue writeQueue = mWriteQueue;
+        if (writeQueue != null) {
+            writer.println();
+            writeQueue.dump(writer);
+        }
+
+        if (mQueryCache != null) {
+            writer.println();
+            writer.printf("Query cache: %d hits, %d misses, %d evictions, %d of %d bytes%n",
+                    mQueryCache.getHitCount(), mQueryCache.getMissCount(),
+                    mQueryCache.getEvictionCount(), mQueryCache.getSize(), mQueryCache.getMaxSize());
+        }
+    }
+
+    /**
+     * Open a pet's photo file for reading. Photos are only ever written through
+     * {@link PetContract#METHOD_SET_PHOTO}, which keeps the photo timestamp in step.
+     */
+    private ParcelFileDescriptor openPhoto(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Photos are read only: " + uri);
+        }
+        // The photo URI is pets/#/photo
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        return ParcelFileDescriptor.open(mPhotoStore.getFile(id), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Copy the photo of the given pet from the given source, or remove it when there is none,
+     * then stamp the pet so every cached copy of the old photo goes stale.
+     */
+    private Bundle setPhoto(String petUriString, Uri source) {
+        Uri petUri = Uri.parse(petUriString);
+        if (sUriMatcher.match(petUri) != PET_ID) {
+            throw new IllegalArgumentException("Not a pet: " + petUriString);
+        }
+        checkNotMainThread("setPhoto", petUri);
+
+        long id = ContentUris.parseId(petUri);
+        File copy = null;
+        if (source != null) {
+            try {
+                InputStream in = getContext().getContentResolver().openInputStream(source);
+                if (in == null) {
+                    throw new FileNotFoundException("Cannot open " + source);
+                }
+                try {
+                    copy = mPhotoStore.copy(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read photo from " + source, e);
+            }
+        }
+
+        int rowsUpdated;
+        try {
+            // The orphan sweep must never see the new photo before its pet is stamped, or it
+            // would take it for the photo of a deleted pet.
+            synchronized (mPhotoStore) {
+                long photoUpdated = 0;
+                if (copy == null) {
+                    mPhotoStore.delete(id);
+                } else {
+                    mPhotoStore.moveIntoPlace(copy, id);
+                    photoUpdated = System.currentTimeMillis();
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_PHOTO_UPDATED, photoUpdated);
+                rowsUpdated = mDbHelper.getWritableDatabase().update(PetEntry.TABLE_NAME, values,
+                        PetEntry._ID + "=?", new String[]{String.valueOf(id)});
+                if (rowsUpdated == 0) {
+                    // The pet was deleted while its photo was copied
+                    mPhotoStore.delete(id);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot store photo of " + petUri, e);
+        } finally {
+            if (copy != null) {
+                // Only still there if it was never moved into place
+                copy.delete();
+            }
+        }
+
+        if (rowsUpdated != 0) {
+            notifyChange(petUri);
+        }
+        return null;
+    }
+
+    /**
+     * Delete the photos of the given deleted pets, once their deletes have committed. Inside a
+     * batch they wait for {@link #applyBatch(ArrayList)} to commit.
+     */
+    private void deletePhotos(long[] ids) {
+        Set<Long> pending = mPendingPhotoDeletes.get();
+        for (long id : ids) {
+            if (pending != null) {
+                pending.add(id);
+            } else {
+                mPhotoStore.delete(id);
+            }
+        }
+    }
+
+    /**
+     * Delete the photos of pets that no longer exist, left behind by a crash between a delete
+     * and the deletion of its photos.
+     */
+    private void deleteOrphanPhotos(SQLiteDatabase database) {
+        synchronized (mPhotoStore) {
+            Set<Long> ids = new HashSet<Long>();
+            Cursor cursor = database.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                    PetEntry.COLUMN_PET_PHOTO_UPDATED + " != 0", null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            mPhotoStore.deleteAllExcept(ids);
+        }
+    }
+
+    /**
+     * Returns the file types the export URI can be opened as.
+     */
+    @Nullable
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != EXPORT) {
+            return null;
+        }
+        List<String> types = new ArrayList<String>();
+        for (String type : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Open the export URI as a stream of the first export type matching the given filter.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != EXPORT) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        for (String type : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                return new AssetFileDescriptor(openExport(uri, type), 0,
+                        AssetFileDescriptor.UNKNOWN_LENGTH);
+            }
+        }
+        throw new FileNotFoundException("Cannot export " + uri + " as " + mimeTypeFilter);
+    }
+
+    /**
+     * Open the export URI as a stream in the format named by its format parameter.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) == PET_PHOTO) {
+            return openPhoto(uri, mode);
+        }
+        if (sUriMatcher.match(uri) != EXPORT) {
+            return super.openFile(uri, mode);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Export is read only: " + uri);
+        }
+        String format = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_FORMAT);
+        return openExport(uri, "json".equals(format) ? PetEntry.EXPORT_JSON_TYPE : PetEntry.EXPORT_CSV_TYPE);
+    }
+
+    /**
+     * Start writing the pets table into a pipe on a background thread and return the end
+     * the caller reads from.
+     */
+    private ParcelFileDescriptor openExport(Uri uri, String mimeType) throws FileNotFoundException {
+        checkNotMainThread("export", uri);
+        return openPipeHelper(uri, mimeType, null, null, new PipeDataWriter<Object>() {
+            @Override
+            public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                        Bundle opts, Object args) {
+                PetExporter exporter = new PetExporter(mDbHelper.getReadableDatabase());
+                Writer writer = null;
+                try {
+                    writer = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(output.getFileDescriptor()), "UTF-8"));
+                    if (PetEntry.EXPORT_JSON_TYPE.equals(mimeType)) {
+                        exporter.writeJson(writer);
+                    } else {
+                        exporter.writeCsv(writer);
+                    }
+                } catch (IOException e) {
+                    // Usually the reader closing its end early
+                    Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+                } finally {
+                    if (writer != null) {
+                        try {
+                            writer.close();
+                        } catch (IOException e) {
+                            Log.w(LOG_TAG, "Failed to close export of " + uri, e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Insert new data into the provider with the given ContentValues.
+     */
+    @Nullable
+    @Override
+    public Uri insert(Uri uri, ContentValues contentValues) {
+        checkNotMainThread("insert", uri);
+
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            Uri newUri = dispatchInsert(match, uri, contentValues);
+            if (newUri == null) {
+                mMetrics.recordError(PetProviderMetrics.OPERATION_INSERT, metricsTarget(match), start);
+            } else {
+                mMetrics.recordSuccess(PetProviderMetrics.OPERATION_INSERT, metricsTarget(match), start, 1);
+            }
+            return newUri;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_INSERT, metricsTarget(match), start);
+            throw e;
+        }
+    }
+
+    private Uri dispatchInsert(int match, Uri uri, ContentValues contentValues) {
+        switch (match) {
+            case PETS:
+                return insertPet(uri, contentValues);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertPet(Uri uri, ContentValues values) {
+        PetRecord record = mScratchRecord.get();
+        Future<Uri> queued = mWriteQueue != null && PetRecord.readFrom(values, record)
+                ? enqueueInsert(record)
+                : null;
+        if (queued != null) {
+            // Committed, and observers notified, by the writer thread
+            Uri newUri = awaitWrite(queued);
+            if (newUri == null) {
+                Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            }
+            return newUri;
+        }
+
+        long id = insertPetValues(values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        notifyChange(uri);
+
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Insert one pet given as content values, through the typed write path whenever the values
+     * can be read into a {@link PetRecord}. Returns the new row ID, or -1 if SQLite rejected
+     * the row.
+     */
+    private long insertPetValues(ContentValues values) {
+        PetRecord record = mScratchRecord.get();
+        if (PetRecord.readFrom(values, record)) {
+            try {
+                return mRecordWriter.insert(record);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Failed to insert pet", e);
+                return -1;
+            }
+        }
+
+        validatePet(values);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // insert() reports a rejected row as -1 rather than throwing, so the transaction
+        // never fails a caller's batch
+        database.beginTransaction();
+        try {
+            long id = database.insert(PetEntry.TABLE_NAME, null, values);
+            if (id != -1) {
+                mRecordWriter.indexName(id, values.getAsString(PetEntry.COLUMN_PET_NAME));
+            }
+            database.setTransactionSuccessful();
+            return id;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Insert the given pet, for callers in this process that hold the provider itself, see
+     * {@link PetRecord}. Validates the pet like {@link #insert(Uri, ContentValues)} and returns
+     * the new pet's URI, or null if the row could not be inserted.
+     */
+    public Uri insert(PetRecord record) {
+        return insertRecord(record, true);
+    }
+
+    /**
+     * Insert the given pet, through the group commit writer if it is on and useQueue is true,
+     * otherwise on the calling thread.
+     */
+    private Uri insertRecord(PetRecord record, boolean useQueue) {
+        checkNotMainThread("insert", PetEntry.CONTENT_URI);
+
+        long start = System.nanoTime();
+        try {
+            Future<Uri> queued = useQueue ? enqueueInsert(record) : null;
+            if (queued != null) {
+                Uri newUri = awaitWrite(queued);
+                if (newUri == null) {
+                    mMetrics.recordError(PetProviderMetrics.OPERATION_INSERT,
+                            PetProviderMetrics.TARGET_PETS, start);
+                } else {
+                    mMetrics.recordSuccess(PetProviderMetrics.OPERATION_INSERT,
+                            PetProviderMetrics.TARGET_PETS, start, 1);
+                }
+                return newUri;
+            }
+
+            long id = mRecordWriter.insert(record);
+            mMetrics.recordSuccess(PetProviderMetrics.OPERATION_INSERT,
+                    PetProviderMetrics.TARGET_PETS, start, 1);
+            notifyChange(PetEntry.CONTENT_URI);
+            return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+        } catch (SQLException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_INSERT, PetProviderMetrics.TARGET_PETS, start);
+            Log.e(LOG_TAG, "Failed to insert pet", e);
+            return null;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_INSERT, PetProviderMetrics.TARGET_PETS, start);
+            throw e;
+        }
+    }
+
+    /**
+     * Insert the given pet without waiting for it to be committed, for callers in this process
+     * that hold the provider itself. With group commit on, the pet is queued for the writer
+     * thread and the returned future completes once its group has been committed. Otherwise
+     * the pet is inserted before this returns. The future holds the new pet's URI, or null if
+     * the row could not be inserted. The record may be reused as soon as this returns.
+     */
+    public Future<Uri> insertAsync(PetRecord record) {
+        Future<Uri> queued = enqueueInsert(record);
+        // Group commit may have been turned on since, but this must not wait on the writer
+        return queued != null ? queued : PetWriteQueue.done(insertRecord(record, false));
+    }
+
+    /**
+     * Update the given pet without waiting for the update to be committed, like
+     * {@link #insertAsync(PetRecord)}. The future holds the number of rows updated.
+     */
+    public Future<Integer> updateAsync(long id, PetRecord record) {
+        Future<Integer> queued = enqueueUpdate(id, record);
+        return queued != null ? queued : PetWriteQueue.done(updateRecord(id, record, false));
+    }
+
+    /**
+     * Queue the insertion of the given pet for the group commit writer. Returns null if the
+     * pet has to be written by the calling thread instead.
+     */
+    private Future<Uri> enqueueInsert(PetRecord record) {
+        PetWriteQueue queue = activeWriteQueue();
+        if (queue != null) {
+            try {
+                return queue.insert(record);
+            } catch (IllegalStateException e) {
+                // Group commit was turned off in the meantime
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queue an update of the given pet for the group commit writer. Returns null if the pet
+     * has to be written by the calling thread instead.
+     */
+    private Future<Integer> enqueueUpdate(long id, PetRecord record) {
+        PetWriteQueue queue = activeWriteQueue();
+        if (queue != null) {
+            try {
+                return queue.update(id, record);
+            } catch (IllegalStateException e) {
+                // Group commit was turned off in the meantime
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the group commit writer if the calling thread may hand it writes, or null.
+     */
+    private PetWriteQueue activeWriteQueue() {
+        PetWriteQueue queue = mWriteQueue;
+        // A thread inside a transaction, as in applyBatch, holds the lock the writer thread
+        // would wait for, so it writes itself
+        if (queue == null || mDbHelper.getWritableDatabase().inTransaction()) {
+            return null;
+        }
+        return queue;
     }
 
     /**
-     * Initialize the provider and the database helper object.
+     * Wait for a queued write to be committed and return its result, rethrowing the exception
+     * it failed with.
      */
-    @Override
-    public boolean onCreate() {
-        mDbHelper = new PetDbHelper(getContext());
-        return true;
+    private static <T> T awaitWrite(Future<T> write) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return write.get();
+                } catch (InterruptedException e) {
+                    // The write is queued either way, so its caller has to know how it went
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Write failed", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
-     * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
+     * Start or stop the group commit writer, see {@link PetContract#METHOD_SET_GROUP_COMMIT}.
      */
-    @Nullable
-    @Override
-    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
-                        String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+    private void setGroupCommit(boolean enabled) {
+        synchronized (mWriteQueueLock) {
+            if (enabled == (mWriteQueue != null)) {
+                return;
+            }
+            if (enabled) {
+                Resources resources = getContext().getResources();
+                mWriteQueue = new PetWriteQueue(mDbHelper, mRecordWriter,
+                        new PetWriteQueue.Callback() {
+                            @Override
+                            public void onGroupCommitted(Collection<Uri> changedUris) {
+                                for (Uri uri : changedUris) {
+                                    notifyChange(uri);
+                                }
+                            }
+                        },
+                        resources.getInteger(R.integer.config_group_commit_max_size),
+                        resources.getInteger(R.integer.config_group_commit_max_delay_ms));
+            } else {
+                PetWriteQueue queue = mWriteQueue;
+                mWriteQueue = null;
+                queue.close();
+            }
+        }
+    }
 
-        // This cursor will hold the result of the query
-        Cursor cursor = null;
+    /**
+     * Insert all the given pets in a single transaction, for callers in this process that hold
+     * the provider itself. The same records may be reused for the next call as soon as this
+     * one returns.
+     */
+    public int bulkInsert(PetRecord[] records) {
+        checkNotMainThread("bulkInsert", PetEntry.CONTENT_URI);
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                // For the PETS code, query the pets table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the pets table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
-                break;
-            case PET_ID:
-                // For the PET_ID code, extract out the ID from the URI.
-                // For an example URI such as "content://com.example.android.pets/pets/3",
-                // the selection will be "_id=?" and the selection argument will be a
-                // String array containing the actual ID of 3 in this case.
-                //
-                // For every "?" in the selection, we need to have an element in the selection
-                // arguments that will fill in the "?". Since we have 1 question mark in the
-                // selection, we have 1 String in the selection arguments' String array.
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                for (PetRecord record : records) {
+                    mRecordWriter.insert(record);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
 
-                // This will perform a query on the pets table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
-                break;
-            default:
-                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+            if (records.length != 0) {
+                notifyChange(PetEntry.CONTENT_URI);
+            }
+            mMetrics.recordSuccess(PetProviderMetrics.OPERATION_INSERT,
+                    PetProviderMetrics.TARGET_PETS, start, records.length);
+            return records.length;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_INSERT, PetProviderMetrics.TARGET_PETS, start);
+            throw e;
         }
-
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
-
-        return cursor;
     }
 
     /**
-     * Returns the MIME type of data for the content URI.
+     * Write the fields set on the given record to the pet with the given ID, for callers in
+     * this process that hold the provider itself. Returns the number of rows updated.
      */
-    @Nullable
-    @Override
-    public String getType(Uri uri) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return PetEntry.CONTENT_LIST_TYPE;
-            case PET_ID:
-                return PetEntry.CONTENT_ITEM_TYPE;
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri + " with match " + match);
-        }
+    public int update(long id, PetRecord record) {
+        return updateRecord(id, record, true);
     }
 
     /**
-     * Insert new data into the provider with the given ContentValues.
+     * Update the given pet, through the group commit writer if it is on and useQueue is true,
+     * otherwise on the calling thread.
      */
-    @Nullable
-    @Override
-    public Uri insert(Uri uri, ContentValues contentValues) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+    private int updateRecord(long id, PetRecord record, boolean useQueue) {
+        Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+        checkNotMainThread("update", uri);
+
+        long start = System.nanoTime();
+        try {
+            int rowsUpdated = updatePetRecord(uri, id, record, useQueue);
+            mMetrics.recordSuccess(PetProviderMetrics.OPERATION_UPDATE,
+                    PetProviderMetrics.TARGET_PET_ID, start, rowsUpdated);
+            return rowsUpdated;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_UPDATE, PetProviderMetrics.TARGET_PET_ID, start);
+            throw e;
         }
     }
 
     /**
-     * Insert a pet into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Check that the given content values describe a valid new pet, throwing an
+     * {@link IllegalArgumentException} if they don't.
      */
-    private Uri insertPet(Uri uri, ContentValues values) {
-        getContext().getContentResolver().notifyChange(uri, null);
-
+    static void validatePet(ContentValues values) {
         // Check that the name is not null
         String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
         if (name == null) {
@@ -149,18 +1379,84 @@ public class PetProvider extends ContentProvider {
         if (weight != null && weight < 0) {
             throw new IllegalArgumentException("Pet requires valid weight");
         }
-        // Get writable database
+    }
+
+    /**
+     * Insert all the given pets in a single transaction. Every row is validated with the same
+     * rules as {@link #insertPet(Uri, ContentValues)}, and observers are notified once at the end.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        checkNotMainThread("bulkInsert", uri);
+
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            int rowsInserted;
+            switch (match) {
+                case PETS:
+                    rowsInserted = bulkInsertPets(uri, values);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+            mMetrics.recordSuccess(PetProviderMetrics.OPERATION_INSERT, metricsTarget(match), start,
+                    rowsInserted);
+            return rowsInserted;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_INSERT, metricsTarget(match), start);
+            throw e;
+        }
+    }
+
+    private int bulkInsertPets(Uri uri, ContentValues[] values) {
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
 
-        // Insert the new pet with the given values
-        long id = database.insert(PetEntry.TABLE_NAME, null, values);
+        // The typed path binds every row into the same cached insert statement, and the whole
+        // batch shares one commit instead of paying for one on each pet.
+        database.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (insertPetValues(value) == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                } else {
+                    rowsInserted++;
+                }
+            }
+            saveImportCheckpoint(database, uri);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
 
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        // The URI may carry an import checkpoint, observers only need to know the pets changed
+        if (rowsInserted != 0) {
+            notifyChange(PetEntry.CONTENT_URI);
         }
 
-        return ContentUris.withAppendedId(uri, id);
+        return rowsInserted;
+    }
+
+    /**
+     * If the given bulk insert URI belongs to an import, record how far the import has got, in
+     * the transaction of the chunk. See {@link ImportEntry#buildChunkUri(String, int)}.
+     */
+    private static void saveImportCheckpoint(SQLiteDatabase database, Uri uri) {
+        String source = uri.getQueryParameter(ImportEntry.QUERY_PARAMETER_SOURCE);
+        if (source == null) {
+            return;
+        }
+        String recordsDone = uri.getQueryParameter(ImportEntry.QUERY_PARAMETER_RECORDS_DONE);
+        if (recordsDone == null) {
+            throw new IllegalArgumentException("Import chunk without its checkpoint " + uri);
+        }
+
+        ContentValues checkpoint = new ContentValues();
+        checkpoint.put(ImportEntry.COLUMN_SOURCE, source);
+        checkpoint.put(ImportEntry.COLUMN_RECORDS_DONE, Integer.parseInt(recordsDone));
+        database.insertWithOnConflict(ImportEntry.TABLE_NAME, null, checkpoint,
+                SQLiteDatabase.CONFLICT_REPLACE);
     }
 
     /**
@@ -168,16 +1464,41 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        checkNotMainThread("delete", uri);
+
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            int rowsDeleted = dispatchDelete(match, uri, selection, selectionArgs);
+            mMetrics.recordSuccess(PetProviderMetrics.OPERATION_DELETE, metricsTarget(match), start,
+                    rowsDeleted);
+            return rowsDeleted;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_DELETE, metricsTarget(match), start);
+            throw e;
+        }
+    }
+
+    private int dispatchDelete(int match, Uri uri, String selection, String[] selectionArgs) {
         // Get writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
         int rowsDeleted = 0;
 
-        final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                // Delete all the rows that match the selection and selection args
-                // For case PETS:
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete all the rows that match the selection and selection args, and then
+                // the photos of those that had one
+                long[] photoIds;
+                database.beginTransaction();
+                try {
+                    photoIds = selectIds(database, DatabaseUtils.concatenateWhere(selection,
+                            PetEntry.COLUMN_PET_PHOTO_UPDATED + " != 0"), selectionArgs);
+                    rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                deletePhotos(photoIds);
                 break;
                 //return database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
             case PET_ID:
@@ -185,13 +1506,19 @@ public class PetProvider extends ContentProvider {
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    deletePhotos(new long[]{ContentUris.parseId(uri)});
+                }
                 break;
                 //return database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            case IMPORTS:
+                // Nobody observes the checkpoints, so there is nothing to notify
+                return database.delete(ImportEntry.TABLE_NAME, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsDeleted;
@@ -202,11 +1529,34 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        checkNotMainThread("update", uri);
+
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            int rowsUpdated = dispatchUpdate(match, uri, contentValues, selection, selectionArgs);
+            mMetrics.recordSuccess(PetProviderMetrics.OPERATION_UPDATE, metricsTarget(match), start,
+                    rowsUpdated);
+            return rowsUpdated;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_UPDATE, metricsTarget(match), start);
+            throw e;
+        }
+    }
+
+    private int dispatchUpdate(int match, Uri uri, ContentValues contentValues, String selection,
+                               String[] selectionArgs) {
         switch (match) {
             case PETS:
                 return updatePet(uri, contentValues, selection, selectionArgs);
             case PET_ID:
+                // Values holding only the pet's own columns take the typed path, which updates
+                // the row by ID through a cached statement.
+                PetRecord record = mScratchRecord.get();
+                if (PetRecord.readFrom(contentValues, record)) {
+                    return updatePetRecord(uri, ContentUris.parseId(uri), record, true);
+                }
+
                 // For the PET_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
@@ -247,12 +1597,393 @@ public class PetProvider extends ContentProvider {
 
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        int rowsUpdated = database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            // The renamed pets have to be picked out before the new name can change which
+            // pets the selection matches
+            long[] renamedIds = name == null ? null : selectIds(database, selection, selectionArgs);
+
+            long start = System.nanoTime();
+            rowsUpdated = database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+            long nanos = System.nanoTime() - start;
+            if (mSlowQueryLog.isSlow(nanos)) {
+                logSlowUpdate(database, values, selection, selectionArgs, nanos);
+            }
+
+            if (renamedIds != null) {
+                for (long id : renamedIds) {
+                    mRecordWriter.reindexName(id, name);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+
+        return rowsUpdated;
+    }
+
+    private int updatePetRecord(Uri uri, long id, PetRecord record, boolean useQueue) {
+        Future<Integer> queued = useQueue ? enqueueUpdate(id, record) : null;
+        if (queued != null) {
+            // Committed, and observers notified, by the writer thread
+            return awaitWrite(queued);
+        }
+
+        long start = System.nanoTime();
+        int rowsUpdated = mRecordWriter.update(id, record);
+        long nanos = System.nanoTime() - start;
+        if (mSlowQueryLog.isSlow(nanos)) {
+            String[] bindArgs = new String[Integer.bitCount(record.getFields()) + 1];
+            Arrays.fill(bindArgs, "0");
+            bindArgs[bindArgs.length - 1] = String.valueOf(id);
+            mSlowQueryLog.maybeRecord(mDbHelper.getWritableDatabase(),
+                    PetRecordWriter.updateSql(record.getFields()), bindArgs, nanos);
+        }
+
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsUpdated;
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns the IDs of the pets matching the given selection.
+     */
+    private static long[] selectIds(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Cursor cursor = database.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Log an update that was slow, with the same SQL {@link SQLiteDatabase#update} ran.
+     */
+    private void logSlowUpdate(SQLiteDatabase database, ContentValues values, String selection,
+                               String[] selectionArgs, long nanos) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(PetEntry.TABLE_NAME).append(" SET ");
+        List<String> bindArgs = new ArrayList<String>();
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            if (!bindArgs.isEmpty()) {
+                sql.append(',');
+            }
+            sql.append(value.getKey()).append("=?");
+            // Only the number and position of the arguments matter to the plan
+            bindArgs.add(String.valueOf(value.getValue()));
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+        if (selectionArgs != null) {
+            bindArgs.addAll(Arrays.asList(selectionArgs));
+        }
+        mSlowQueryLog.maybeRecord(database, sql.toString(),
+                bindArgs.toArray(new String[bindArgs.size()]), nanos);
+    }
+
+    /**
+     * Close the database. Only used by providers created for benchmarks, the system never
+     * shuts a provider down.
+     */
+    @Override
+    public void shutdown() {
+        setGroupCommit(false);
+        mRecordWriter.close();
+        mDbHelper.close();
+    }
+
+    /**
+     * Run one of the provider methods declared in {@link PetContract}.
+     */
+    @Nullable
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_CHECKPOINT.equals(method)) {
+            mDbHelper.checkpoint();
+            return null;
+        }
+        if (PetContract.METHOD_SET_GROUP_COMMIT.equals(method)) {
+            setGroupCommit(Boolean.parseBoolean(arg));
+            return null;
+        }
+        if (PetContract.METHOD_SET_PHOTO.equals(method)) {
+            return setPhoto(arg, extras == null
+                    ? null
+                    : (Uri) extras.getParcelable(PetContract.KEY_PHOTO_SOURCE));
+        }
+        if (PetContract.METHOD_GET_CHANGE_LOG_STATE.equals(method)) {
+            return getChangeLogState();
+        }
+        if (PetContract.METHOD_COMPACT_CHANGES.equals(method)) {
+            return compactChanges(arg);
+        }
+        if (PetContract.METHOD_PURGE_CHUNK.equals(method)) {
+            return purgeChunk(arg);
+        }
+        if (PetContract.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            try {
+                mSlowQueryLog.setThresholdMillis(Long.parseLong(arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid slow-query threshold " + arg);
+            }
+            return null;
+        }
+        if (PetContract.METHOD_GET_QUERY_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            if (mQueryCache != null) {
+                stats.putLong(PetContract.KEY_CACHE_HITS, mQueryCache.getHitCount());
+                stats.putLong(PetContract.KEY_CACHE_MISSES, mQueryCache.getMissCount());
+                stats.putInt(PetContract.KEY_CACHE_EVICTIONS, mQueryCache.getEvictionCount());
+                stats.putInt(PetContract.KEY_CACHE_SIZE_BYTES, mQueryCache.getSize());
+                stats.putInt(PetContract.KEY_CACHE_MAX_SIZE_BYTES, mQueryCache.getMaxSize());
+            }
+            return stats;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    private Bundle getChangeLogState() {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        long compactedSeq = DatabaseUtils.longForQuery(database, "SELECT " +
+                PetDbHelper.COLUMN_COMPACTED_SEQ + " FROM " + PetDbHelper.TABLE_CHANGE_LOG, null);
+        long lastSeq = DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX(" +
+                ChangeEntry.COLUMN_SEQ + "), ?) FROM " + ChangeEntry.TABLE_NAME,
+                new String[]{String.valueOf(compactedSeq)});
+
+        Bundle state = new Bundle();
+        state.putLong(PetContract.KEY_CHANGE_LOG_COMPACTED_SEQ, compactedSeq);
+        state.putLong(PetContract.KEY_CHANGE_LOG_LAST_SEQ, lastSeq);
+        return state;
+    }
+
+    /**
+     * Drop the changes no consumer needs any more, see {@link PetContract#METHOD_COMPACT_CHANGES}.
+     */
+    private Bundle compactChanges(String arg) {
+        checkNotMainThread("compactChanges", ChangeEntry.CONTENT_URI);
+
+        long truncateSeq = -1;
+        if (arg != null) {
+            if (arg.length() == 0 || !TextUtils.isDigitsOnly(arg)) {
+                throw new IllegalArgumentException("Invalid sequence number " + arg);
+            }
+            truncateSeq = Long.parseLong(arg);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted;
+        database.beginTransaction();
+        try {
+            // A consumer past a superseded change has read it, one before it gets the latest
+            // change of the same pet anyway.
+            rowsDeleted = database.delete(ChangeEntry.TABLE_NAME, ChangeEntry.COLUMN_SEQ +
+                    " < (SELECT MAX(" + ChangeEntry.COLUMN_SEQ + ") FROM " + ChangeEntry.TABLE_NAME +
+                    " AS newer WHERE newer." + ChangeEntry.COLUMN_PET_ID + " = " +
+                    ChangeEntry.TABLE_NAME + "." + ChangeEntry.COLUMN_PET_ID + ")", null);
+
+            if (truncateSeq >= 0) {
+                String[] args = {String.valueOf(truncateSeq)};
+                rowsDeleted += database.delete(ChangeEntry.TABLE_NAME,
+                        ChangeEntry.COLUMN_SEQ + " <= ?", args);
+                database.execSQL("UPDATE " + PetDbHelper.TABLE_CHANGE_LOG + " SET " +
+                        PetDbHelper.COLUMN_COMPACTED_SEQ + " = MAX(" +
+                        PetDbHelper.COLUMN_COMPACTED_SEQ + ", CAST(? AS INTEGER))", args);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Cached deltas may still hold the dropped changes
+        if (rowsDeleted != 0) {
+            invalidateQueryCache();
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_ROWS_DELETED, rowsDeleted);
+        return result;
+    }
+
+    /**
+     * Delete the next chunk of pets and give the pages they used back to the file system.
+     */
+    private Bundle purgeChunk(String arg) {
+        checkNotMainThread("purge", PetEntry.CONTENT_URI);
+
+        int chunkSize = DEFAULT_PURGE_CHUNK_SIZE;
+        if (arg != null) {
+            try {
+                chunkSize = Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                chunkSize = 0;
+            }
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("Invalid purge chunk size " + arg);
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long start = System.nanoTime();
+        int rowsDeleted = 0;
+        long rowsRemaining;
+        List<Long> photoIds = new ArrayList<Long>();
+
+        database.beginTransaction();
+        try {
+            // The chunk is the pets with the lowest IDs, so it ends at the last one selected
+            long lastId = -1;
+            Cursor chunk = database.rawQuery(SQL_PURGE_CHUNK_IDS,
+                    new String[]{String.valueOf(chunkSize)});
+            try {
+                while (chunk.moveToNext()) {
+                    lastId = chunk.getLong(0);
+                    if (chunk.getLong(1) != 0) {
+                        photoIds.add(lastId);
+                    }
+                }
+            } finally {
+                chunk.close();
+            }
+
+            if (lastId != -1) {
+                SQLiteStatement statement = database.compileStatement(SQL_PURGE_CHUNK);
+                try {
+                    statement.bindLong(1, lastId);
+                    rowsDeleted = statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+            }
+            rowsRemaining = DatabaseUtils.longForQuery(database, "SELECT " +
+                    PetDbHelper.COLUMN_PET_COUNT + " FROM " + PetDbHelper.TABLE_TOTALS, null);
+            database.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            mMetrics.recordError(PetProviderMetrics.OPERATION_DELETE, PetProviderMetrics.TARGET_PETS, start);
+            throw e;
+        } finally {
+            database.endTransaction();
+        }
+        mMetrics.recordSuccess(PetProviderMetrics.OPERATION_DELETE, PetProviderMetrics.TARGET_PETS,
+                start, rowsDeleted);
+
+        // Each chunk's photos go as soon as it commits, so a purge that stops part way leaves
+        // none behind
+        for (long id : photoIds) {
+            mPhotoStore.delete(id);
+        }
+
+        // Readers and writers get the database back between the delete and the vacuum, and
+        // again before the caller asks for the next chunk.
+        mDbHelper.incrementalVacuum();
+        if (rowsRemaining == 0) {
+            // Once the table is empty, a database that predates incremental vacuum is small
+            // enough to switch over cheaply.
+            mDbHelper.enableIncrementalVacuum();
+        }
+
+        if (rowsDeleted != 0) {
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_ROWS_DELETED, rowsDeleted);
+        result.putLong(PetContract.KEY_ROWS_REMAINING, rowsRemaining);
+        return result;
+    }
+
+    /**
+     * Apply all the given operations atomically in one transaction. Change notifications raised
+     * by the individual operations are held back and sent once per distinct URI after commit,
+     * and the photos of deleted pets are only deleted then too.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        checkNotMainThread("applyBatch", PetEntry.CONTENT_URI);
+
+        // A nested batch simply joins the outer one, which owns the pending notifications.
+        if (mPendingNotifications.get() != null) {
+            return super.applyBatch(operations);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Uri> pending = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+
+        Set<Long> deletedPhotos = new HashSet<Long>();
+
+        mPendingNotifications.set(pending);
+        mPendingPhotoDeletes.set(deletedPhotos);
+        database.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mPendingNotifications.remove();
+            mPendingPhotoDeletes.remove();
+            // Results cached while the batch was still running may not match what committed
+            invalidateQueryCache();
+        }
+
+        // Photos only go once the deletes are committed
+        for (long id : deletedPhotos) {
+            mPhotoStore.delete(id);
+        }
+
+        ContentResolver resolver = getContext().getContentResolver();
+        for (Uri uri : pending) {
+            resolver.notifyChange(uri, null);
+        }
+
+        return results;
+    }
+
+    /**
+     * In debug builds, flag any query or write that arrives on the main thread, where waiting
+     * on the database would stall the UI.
+     */
+    private static void checkNotMainThread(String operation, Uri uri) {
+        if (BuildConfig.DEBUG && Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(LOG_TAG, operation + " of " + uri + " ran on the main thread",
+                    new Throwable("Main thread database access"));
+        }
+    }
+
+    private void invalidateQueryCache() {
+        if (mQueryCache != null) {
+            mQueryCache.invalidate();
+        }
+    }
+
+    /**
+     * Notify observers that the data at the given URI has changed, and drop any cached query
+     * results. Inside a batch the notification is deferred until the batch commits.
+     */
+    private void notifyChange(Uri uri) {
+        invalidateQueryCache();
+
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.example.android.pets.data;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counters and latency histograms for {@link PetProvider}, one set per operation and per
+ * kind of URI. Recording only touches atomic counters, so it never takes a lock and costs a few
+ * nanoseconds per call.
+ */
+class PetProviderMetrics {
+
+    static final int OPERATION_QUERY = 0;
+    static final int OPERATION_INSERT = 1;
+    static final int OPERATION_UPDATE = 2;
+    static final int OPERATION_DELETE = 3;
+
+    static final String[] OPERATION_NAMES = {"query", "insert", "update", "delete"};
+
+    static final int TARGET_PETS = 0;
+    static final int TARGET_PET_ID = 1;
+    static final int TARGET_OTHER = 2;
+
+    static final String[] TARGET_NAMES = {"pets", "pet_id", "other"};
+
+    /**
+     * Latency histogram buckets. Bucket i counts calls that took less than 2^i microseconds and
+     * the last bucket counts everything slower, about 8 seconds and up.
+     */
+    private static final int BUCKET_COUNT = 24;
+
+    private final Recorder[] mRecorders = new Recorder[OPERATION_NAMES.length * TARGET_NAMES.length];
+
+    PetProviderMetrics() {
+        for (int i = 0; i < mRecorders.length; i++) {
+            mRecorders[i] = new Recorder();
+        }
+    }
+
+    /**
+     * Record a call that started at the given {@link System#nanoTime()} and touched, inserted or
+     * returned the given number of rows.
+     */
+    void recordSuccess(int operation, int target, long startNanos, int rows) {
+        recorder(operation, target).record(System.nanoTime() - startNanos, rows, false);
+    }
+
+    /**
+     * Record a call that started at the given {@link System#nanoTime()} and failed.
+     */
+    void recordError(int operation, int target, long startNanos) {
+        recorder(operation, target).record(System.nanoTime() - startNanos, 0, true);
+    }
+
+    Recorder recorder(int operation, int target) {
+        return mRecorders[operation * TARGET_NAMES.length + target];
+    }
+
+    /**
+     * Print every operation and URI kind that has been called, as a table.
+     */
+    void dump(PrintWriter writer) {
+        writer.printf("%-7s %-7s %9s %7s %11s %9s %9s %9s %9s %9s%n", "op", "uri", "calls",
+                "errors", "rows", "max_rows", "mean_us", "p50_us", "p99_us", "max_us");
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int target = 0; target < TARGET_NAMES.length; target++) {
+                Recorder recorder = recorder(operation, target);
+                long calls = recorder.getCalls();
+                if (calls == 0) {
+                    continue;
+                }
+                writer.printf("%-7s %-7s %9d %7d %11d %9d %9d %9d %9d %9d%n",
+                        OPERATION_NAMES[operation], TARGET_NAMES[target], calls,
+                        recorder.getErrors(), recorder.getRows(), recorder.getMaxRows(),
+                        recorder.getMeanMicros(), recorder.getPercentileMicros(50),
+                        recorder.getPercentileMicros(99), recorder.getMaxMicros());
+            }
+        }
+    }
+
+    /**
+     * Counters of one operation on one kind of URI.
+     */
+    static class Recorder {
+
+        private final AtomicLong mCalls = new AtomicLong();
+        private final AtomicLong mErrors = new AtomicLong();
+        private final AtomicLong mRows = new AtomicLong();
+        private final AtomicLong mMaxRows = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        void record(long nanos, int rows, boolean error) {
+            mCalls.incrementAndGet();
+            if (error) {
+                mErrors.incrementAndGet();
+            }
+            mRows.addAndGet(rows);
+            updateMax(mMaxRows, rows);
+            mTotalNanos.addAndGet(nanos);
+            updateMax(mMaxNanos, nanos);
+
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        long getCalls() {
+            return mCalls.get();
+        }
+
+        long getErrors() {
+            return mErrors.get();
+        }
+
+        long getRows() {
+            return mRows.get();
+        }
+
+        long getMaxRows() {
+            return mMaxRows.get();
+        }
+
+        long getMeanMicros() {
+            long calls = mCalls.get();
+            return calls == 0 ? 0 : mTotalNanos.get() / calls / 1000;
+        }
+
+        long getMaxMicros() {
+            return mMaxNanos.get() / 1000;
+        }
+
+        /**
+         * Upper bound, in microseconds, of the histogram bucket holding the given percentile.
+         */
+        long getPercentileMicros(int percentile) {
+            long[] counts = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = mBuckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(percentile / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return getMaxMicros();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of query results for {@link PetProvider}.
+ *
+ * Every entry remembers the write generation it was read at. Each write to the pets table bumps
+ * the generation through {@link #invalidate()}, which turns every older entry into a miss
+ * without having to walk the cache.
+ */
+class PetQueryCache {
+
+    /**
+     * Results with more rows than this are never cached, they would only push everything
+     * else out.
+     */
+    private static final int MAX_CACHED_ROWS = 500;
+
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final LruCache<String, Entry> mEntries;
+
+    /**
+     * @param maxBytes approximate upper bound of the memory held by cached rows
+     */
+    PetQueryCache(int maxBytes) {
+        mEntries = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.mSize;
+            }
+        };
+    }
+
+    /**
+     * Build the cache key of a query. Every part is prefixed with its length so that no two
+     * different queries can end up with the same key.
+     */
+    static String key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                      String sortOrder) {
+        StringBuilder key = new StringBuilder();
+        appendKeyPart(key, uri.toString());
+        appendKeyParts(key, projection);
+        appendKeyPart(key, selection);
+        appendKeyParts(key, selectionArgs);
+        appendKeyPart(key, sortOrder);
+        return key.toString();
+    }
+
+    private static void appendKeyParts(StringBuilder key, String[] parts) {
+        if (parts == null) {
+            key.append("-1;");
+            return;
+        }
+        key.append(parts.length).append(';');
+        for (String part : parts) {
+            appendKeyPart(key, part);
+        }
+    }
+
+    private static void appendKeyPart(StringBuilder key, String part) {
+        if (part == null) {
+            key.append("-1:");
+        } else {
+            key.append(part.length()).append(':').append(part);
+        }
+    }
+
+    /**
+     * Current write generation. Read it before running a query and pass it to
+     * {@link #put(String, long, Cursor)}, so results that raced with a write are not cached.
+     */
+    long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Mark every cached result as stale. Called whenever the pets table is written.
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Return a new cursor over the cached result of the query with the given key, or null if
+     * there is no up to date result.
+     */
+    Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mGeneration != mGeneration.get()) {
+            if (entry != null) {
+                mEntries.remove(key);
+            }
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.newCursor();
+    }
+
+    /**
+     * Cache the rows of the given cursor, which was read at the given generation, and return a
+     * cursor to use in its place. Results that are too big to cache are returned as they are.
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        if (cursor.getCount() > MAX_CACHED_ROWS) {
+            return cursor;
+        }
+
+        Entry entry;
+        if (cursor instanceof PetSnapshotCursor) {
+            // Already an immutable copy, keep it as it is
+            entry = new Entry(generation, (PetSnapshotCursor) cursor);
+        } else {
+            try {
+                entry = new Entry(generation, cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (entry.mSize <= mEntries.maxSize() / 4 && generation == mGeneration.get()) {
+            mEntries.put(key, entry);
+        }
+        return entry.newCursor();
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    int getSize() {
+        return mEntries.size();
+    }
+
+    int getMaxSize() {
+        return mEntries.maxSize();
+    }
+
+    int getEvictionCount() {
+        return mEntries.evictionCount();
+    }
+
+    /**
+     * The rows of one query, copied out of the cursor that produced them, or the snapshot the
+     * query returned.
+     */
+    private static class Entry {
+
+        final long mGeneration;
+        final String[] mColumnNames;
+        final Object[][] mRows;
+        final PetSnapshotCursor mSnapshot;
+        final int mSize;
+
+        Entry(long generation, PetSnapshotCursor snapshot) {
+            mGeneration = generation;
+            mColumnNames = null;
+            mRows = null;
+            mSnapshot = snapshot;
+            mSize = snapshot.getSizeBytes();
+        }
+
+        Entry(long generation, Cursor cursor) {
+            mGeneration = generation;
+            mSnapshot = null;
+            mColumnNames = cursor.getColumnNames();
+            mRows = new Object[cursor.getCount()][];
+
+            int size = 64;
+            int columnCount = mColumnNames.length;
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                Object[] values = new Object[columnCount];
+                size += 16 + 4 * columnCount;
+                for (int column = 0; column < columnCount; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[column] = cursor.getLong(column);
+                            size += 16;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[column] = cursor.getDouble(column);
+                            size += 16;
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String string = cursor.getString(column);
+                            values[column] = string;
+                            size += 40 + 2 * string.length();
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(column);
+                            values[column] = blob;
+                            size += 16 + blob.length;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                mRows[row] = values;
+            }
+            mSize = size;
+        }
+
+        Cursor newCursor() {
+            if (mSnapshot != null) {
+                return mSnapshot.copy();
+            }
+            MatrixCursor cursor = new MatrixCursor(mColumnNames, mRows.length);
+            for (Object[] row : mRows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+}
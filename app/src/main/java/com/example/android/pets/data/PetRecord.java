@@ -0,0 +1,184 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * A pet to write, held in primitive fields. Unlike {@link ContentValues} it can be validated
+ * and bound into a statement without boxing, and it can be cleared and reused for every row a
+ * writer produces. Only the fields that have been set are written by an update.
+ * <p>
+ * Writers in the app's own process pass records straight to the provider, which they get from
+ * {@link android.content.ContentProviderClient#getLocalContentProvider()}. Content values sent
+ * through a {@link android.content.ContentResolver} are read into a record by the provider.
+ */
+public final class PetRecord {
+
+    static final int FIELD_NAME = 1;
+    static final int FIELD_BREED = 1 << 1;
+    static final int FIELD_GENDER = 1 << 2;
+    static final int FIELD_WEIGHT = 1 << 3;
+
+    /**
+     * Every field. Combinations of fields range from 0 to this value.
+     */
+    static final int FIELDS_ALL = FIELD_NAME | FIELD_BREED | FIELD_GENDER | FIELD_WEIGHT;
+
+    private int mFields;
+    private String mName;
+    private String mBreed;
+    private int mGender;
+    private int mWeight;
+
+    /**
+     * Unset every field, so the record can be filled with the next pet.
+     */
+    public PetRecord clear() {
+        mFields = 0;
+        mName = null;
+        mBreed = null;
+        mGender = PetEntry.GENDER_UNKNOWN;
+        mWeight = 0;
+        return this;
+    }
+
+    public PetRecord setName(String name) {
+        mName = name;
+        mFields |= FIELD_NAME;
+        return this;
+    }
+
+    /**
+     * Set the breed, null for an unknown breed.
+     */
+    public PetRecord setBreed(String breed) {
+        mBreed = breed;
+        mFields |= FIELD_BREED;
+        return this;
+    }
+
+    public PetRecord setGender(int gender) {
+        mGender = gender;
+        mFields |= FIELD_GENDER;
+        return this;
+    }
+
+    public PetRecord setWeight(int weight) {
+        mWeight = weight;
+        mFields |= FIELD_WEIGHT;
+        return this;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    String getBreed() {
+        return mBreed;
+    }
+
+    int getGender() {
+        return mGender;
+    }
+
+    /**
+     * Returns the weight, 0 when it hasn't been set, like the column default.
+     */
+    int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * Returns a new record with the same fields set to the same values.
+     */
+    PetRecord copy() {
+        PetRecord copy = new PetRecord();
+        copy.mFields = mFields;
+        copy.mName = mName;
+        copy.mBreed = mBreed;
+        copy.mGender = mGender;
+        copy.mWeight = mWeight;
+        return copy;
+    }
+
+    /**
+     * Returns the FIELD_* flags of the fields that have been set.
+     */
+    int getFields() {
+        return mFields;
+    }
+
+    boolean has(int field) {
+        return (mFields & field) != 0;
+    }
+
+    /**
+     * Check that this record describes a valid new pet, throwing an
+     * {@link IllegalArgumentException} if it doesn't.
+     */
+    void validateForInsert() {
+        if (mName == null) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+        if (!has(FIELD_GENDER) || !PetEntry.isValidGender(mGender)) {
+            throw new IllegalArgumentException("Pet requires valid gender");
+        }
+        validateWeight();
+    }
+
+    /**
+     * Check the fields that have been set, throwing an {@link IllegalArgumentException} if any
+     * of them would leave the pet invalid.
+     */
+    void validateForUpdate() {
+        if (has(FIELD_NAME) && mName == null) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+        if (has(FIELD_GENDER) && !PetEntry.isValidGender(mGender)) {
+            throw new IllegalArgumentException("Pet requires valid gender");
+        }
+        validateWeight();
+    }
+
+    private void validateWeight() {
+        if (mWeight < 0) {
+            throw new IllegalArgumentException("Pet requires valid weight");
+        }
+    }
+
+    /**
+     * Fill the given record from content values, the same way {@link PetProvider} reads them.
+     * Returns false, leaving the record in an undefined state, when the values hold a column
+     * other than the pet's own four or a value that can't be converted to its column's type,
+     * so the caller has to fall back to writing the content values as they are.
+     */
+    static boolean readFrom(ContentValues values, PetRecord record) {
+        record.clear();
+        for (String key : values.keySet()) {
+            if (PetEntry.COLUMN_PET_NAME.equals(key)) {
+                record.setName(values.getAsString(key));
+            } else if (PetEntry.COLUMN__PET_BREED.equals(key)) {
+                record.setBreed(values.getAsString(key));
+            } else if (PetEntry.COLUMN_PET_GENDER.equals(key)) {
+                Integer gender = values.getAsInteger(key);
+                if (gender == null) {
+                    // Not a gender at all, validation rejects it with the usual message
+                    record.setGender(-1);
+                } else {
+                    record.setGender(gender);
+                }
+            } else if (PetEntry.COLUMN_PET_WEIGHT.equals(key)) {
+                Integer weight = values.getAsInteger(key);
+                if (weight == null) {
+                    // A null or unreadable weight has always been stored as it is
+                    return false;
+                }
+                record.setWeight(weight);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+}
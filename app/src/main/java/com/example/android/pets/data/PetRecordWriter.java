@@ -0,0 +1,314 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes {@link PetRecord}s through compiled statements that are kept and reused, so a write
+ * neither builds nor compiles any SQL and boxes none of its values. Every name written is
+ * indexed in {@link PetTrigramIndex} in the same transaction, through pooled statements too.
+ * <p>
+ * A statement holds its bindings, so two threads can't use it at once. Each write takes a
+ * statement out of a pool and puts it back afterwards. A thread that finds the pool empty
+ * compiles another statement rather than waiting for one, since the thread holding it may
+ * itself be waiting for the database this thread's transaction holds.
+ */
+class PetRecordWriter {
+
+    /**
+     * Idle statements kept per SQL string, any more are closed when they are released
+     */
+    private static final int MAX_IDLE_STATEMENTS = 4;
+
+    private static final String SQL_INSERT =
+            "INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN__PET_BREED + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final StatementPool mInsertPool;
+
+    /**
+     * Statements of the trigram index: adding a trigram of a name, and taking a pet out
+     */
+    private final StatementPool mInsertPostingPool;
+    private final StatementPool mInsertCountPool;
+    private final StatementPool mIncrementCountPool;
+    private final StatementPool[] mRemovePools;
+
+    /**
+     * Update statements indexed by the PetRecord.FIELD_* flags of the columns they set,
+     * created on first use
+     */
+    private final StatementPool[] mUpdatePools = new StatementPool[PetRecord.FIELDS_ALL + 1];
+
+    PetRecordWriter(SQLiteOpenHelper dbHelper) {
+        mDbHelper = dbHelper;
+        mInsertPool = new StatementPool(SQL_INSERT);
+        mInsertPostingPool = new StatementPool(PetTrigramIndex.SQL_INSERT_POSTING);
+        mInsertCountPool = new StatementPool(PetTrigramIndex.SQL_INSERT_COUNT);
+        mIncrementCountPool = new StatementPool(PetTrigramIndex.SQL_INCREMENT_COUNT);
+        String[] removeSql = PetTrigramIndex.removeStatements("?");
+        mRemovePools = new StatementPool[removeSql.length];
+        for (int i = 0; i < removeSql.length; i++) {
+            mRemovePools[i] = new StatementPool(removeSql[i]);
+        }
+    }
+
+    /**
+     * Validate and insert the given pet, returning its row ID. Missing breeds are stored as
+     * null and missing weights as 0.
+     *
+     * @throws IllegalArgumentException if the record is not a valid new pet
+     * @throws android.database.SQLException if SQLite rejects the row
+     */
+    long insert(PetRecord record) {
+        record.validateForInsert();
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        boolean transaction = beginIfNeeded(db);
+        try {
+            long id;
+            SQLiteStatement statement = mInsertPool.acquire();
+            try {
+                bindString(statement, 1, record.getName());
+                bindString(statement, 2, record.getBreed());
+                statement.bindLong(3, record.getGender());
+                statement.bindLong(4, record.getWeight());
+                id = statement.executeInsert();
+            } finally {
+                mInsertPool.release(statement);
+            }
+            indexName(id, record.getName());
+            if (transaction) {
+                db.setTransactionSuccessful();
+            }
+            return id;
+        } finally {
+            if (transaction) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Validate the fields set on the given record and write them to the pet with the given ID,
+     * returning the number of rows changed.
+     *
+     * @throws IllegalArgumentException if a field would make the pet invalid
+     */
+    int update(long id, PetRecord record) {
+        record.validateForUpdate();
+
+        int fields = record.getFields();
+        if (fields == 0) {
+            return 0;
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        boolean transaction = record.has(PetRecord.FIELD_NAME) && beginIfNeeded(db);
+        try {
+            int rows = update(id, record, fields);
+            if (rows != 0 && record.has(PetRecord.FIELD_NAME)) {
+                reindexName(id, record.getName());
+            }
+            if (transaction) {
+                db.setTransactionSuccessful();
+            }
+            return rows;
+        } finally {
+            if (transaction) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Index the given name as that of the pet with the given ID. Call inside the transaction
+     * that inserts the pet.
+     */
+    void indexName(long id, String name) {
+        SQLiteStatement insertPosting = mInsertPostingPool.acquire();
+        SQLiteStatement insertCount = mInsertCountPool.acquire();
+        SQLiteStatement incrementCount = mIncrementCountPool.acquire();
+        try {
+            PetTrigramIndex.add(insertPosting, insertCount, incrementCount, id, name);
+        } finally {
+            mInsertPostingPool.release(insertPosting);
+            mInsertCountPool.release(insertCount);
+            mIncrementCountPool.release(incrementCount);
+        }
+    }
+
+    /**
+     * Replace the indexed name of the pet with the given ID with its new one. Call inside the
+     * transaction that renames the pet.
+     */
+    void reindexName(long id, String name) {
+        SQLiteStatement[] statements = new SQLiteStatement[mRemovePools.length];
+        try {
+            for (int i = 0; i < statements.length; i++) {
+                statements[i] = mRemovePools[i].acquire();
+            }
+            PetTrigramIndex.remove(statements, id);
+        } finally {
+            for (int i = 0; i < statements.length; i++) {
+                if (statements[i] != null) {
+                    mRemovePools[i].release(statements[i]);
+                }
+            }
+        }
+        indexName(id, name);
+    }
+
+    private int update(long id, PetRecord record, int fields) {
+        StatementPool pool = updatePool(fields);
+        SQLiteStatement statement = pool.acquire();
+        try {
+            int index = 1;
+            if (record.has(PetRecord.FIELD_NAME)) {
+                bindString(statement, index++, record.getName());
+            }
+            if (record.has(PetRecord.FIELD_BREED)) {
+                bindString(statement, index++, record.getBreed());
+            }
+            if (record.has(PetRecord.FIELD_GENDER)) {
+                statement.bindLong(index++, record.getGender());
+            }
+            if (record.has(PetRecord.FIELD_WEIGHT)) {
+                statement.bindLong(index++, record.getWeight());
+            }
+            statement.bindLong(index, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            pool.release(statement);
+        }
+    }
+
+    /**
+     * Begin a transaction for a write and its trigrams, unless the caller's transaction already
+     * covers them. Returns whether a transaction was begun. A nested transaction is avoided on
+     * purpose: a row SQLite rejects would fail it, and with it the caller's whole transaction,
+     * where on its own the rejected statement only undoes itself.
+     */
+    private static boolean beginIfNeeded(SQLiteDatabase db) {
+        if (db.inTransaction()) {
+            return false;
+        }
+        db.beginTransaction();
+        return true;
+    }
+
+    /**
+     * Returns the SQL {@link #update(long, PetRecord)} runs for the given PetRecord.FIELD_* flags.
+     */
+    static String updateSql(int fields) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(PetEntry.TABLE_NAME).append(" SET ");
+        String separator = "";
+        if ((fields & PetRecord.FIELD_NAME) != 0) {
+            sql.append(separator).append(PetEntry.COLUMN_PET_NAME).append(" = ?");
+            separator = ", ";
+        }
+        if ((fields & PetRecord.FIELD_BREED) != 0) {
+            sql.append(separator).append(PetEntry.COLUMN__PET_BREED).append(" = ?");
+            separator = ", ";
+        }
+        if ((fields & PetRecord.FIELD_GENDER) != 0) {
+            sql.append(separator).append(PetEntry.COLUMN_PET_GENDER).append(" = ?");
+            separator = ", ";
+        }
+        if ((fields & PetRecord.FIELD_WEIGHT) != 0) {
+            sql.append(separator).append(PetEntry.COLUMN_PET_WEIGHT).append(" = ?");
+        }
+        return sql.append(" WHERE ").append(PetEntry._ID).append(" = ?").toString();
+    }
+
+    /**
+     * Close every idle statement. Statements still in use are closed when they are released.
+     */
+    void close() {
+        mInsertPool.close();
+        mInsertPostingPool.close();
+        mInsertCountPool.close();
+        mIncrementCountPool.close();
+        for (StatementPool pool : mRemovePools) {
+            pool.close();
+        }
+        synchronized (mUpdatePools) {
+            for (StatementPool pool : mUpdatePools) {
+                if (pool != null) {
+                    pool.close();
+                }
+            }
+        }
+    }
+
+    private StatementPool updatePool(int fields) {
+        synchronized (mUpdatePools) {
+            StatementPool pool = mUpdatePools[fields];
+            if (pool == null) {
+                pool = new StatementPool(updateSql(fields));
+                mUpdatePools[fields] = pool;
+            }
+            return pool;
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Compiled copies of one statement that aren't in use right now.
+     */
+    private class StatementPool {
+
+        private final String mSql;
+        private final List<SQLiteStatement> mIdle = new ArrayList<SQLiteStatement>(MAX_IDLE_STATEMENTS);
+        private boolean mClosed;
+
+        StatementPool(String sql) {
+            mSql = sql;
+        }
+
+        SQLiteStatement acquire() {
+            synchronized (this) {
+                if (!mIdle.isEmpty()) {
+                    return mIdle.remove(mIdle.size() - 1);
+                }
+            }
+            return mDbHelper.getWritableDatabase().compileStatement(mSql);
+        }
+
+        void release(SQLiteStatement statement) {
+            statement.clearBindings();
+            synchronized (this) {
+                if (!mClosed && mIdle.size() < MAX_IDLE_STATEMENTS) {
+                    mIdle.add(statement);
+                    return;
+                }
+            }
+            statement.close();
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            for (SQLiteStatement statement : mIdle) {
+                statement.close();
+            }
+            mIdle.clear();
+        }
+    }
+}
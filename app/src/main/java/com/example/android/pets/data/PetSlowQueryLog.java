@@ -0,0 +1,168 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Bounded log of the statements {@link PetProvider} ran slower than a threshold, together with
+ * the query plan SQLite picked for them. Once full, every new entry replaces the oldest one.
+ */
+class PetSlowQueryLog {
+
+    /**
+     * One slow statement. Bind argument values are never kept, only their number.
+     */
+    static class Entry {
+        final long timeMillis;
+        final String sql;
+        final int bindArgCount;
+        final long durationMicros;
+        final String plan;
+
+        Entry(long timeMillis, String sql, int bindArgCount, long durationMicros, String plan) {
+            this.timeMillis = timeMillis;
+            this.sql = sql;
+            this.bindArgCount = bindArgCount;
+            this.durationMicros = durationMicros;
+            this.plan = plan;
+        }
+    }
+
+    private final Entry[] mEntries;
+
+    /**
+     * Index the next entry is written to
+     */
+    private int mNext;
+
+    private int mSize;
+
+    /**
+     * Statements taking at least this long are logged, a negative value turns the log off
+     */
+    private volatile long mThresholdNanos;
+
+    PetSlowQueryLog(int capacity, long thresholdMillis) {
+        mEntries = new Entry[capacity];
+        setThresholdMillis(thresholdMillis);
+    }
+
+    void setThresholdMillis(long thresholdMillis) {
+        mThresholdNanos = thresholdMillis < 0 ? -1 : thresholdMillis * 1000000L;
+    }
+
+    long getThresholdMillis() {
+        long thresholdNanos = mThresholdNanos;
+        return thresholdNanos < 0 ? -1 : thresholdNanos / 1000000L;
+    }
+
+    /**
+     * Whether a statement that took the given time has to be logged.
+     */
+    boolean isSlow(long nanos) {
+        long thresholdNanos = mThresholdNanos;
+        return thresholdNanos >= 0 && nanos >= thresholdNanos;
+    }
+
+    /**
+     * Run a query and log it if it was slow. The rows are counted right away, because SQLite
+     * only steps through a query once the cursor window is first filled, and that is where
+     * the time goes.
+     */
+    Cursor query(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        long start = System.nanoTime();
+        Cursor cursor = database.rawQuery(sql, selectionArgs);
+        try {
+            cursor.getCount();
+        } catch (RuntimeException e) {
+            // Filling the window failed, so the caller never gets the cursor to close
+            cursor.close();
+            throw e;
+        }
+        maybeRecord(database, sql, selectionArgs, System.nanoTime() - start);
+        return cursor;
+    }
+
+    /**
+     * Log the given statement if it took longer than the threshold. Capturing the plan runs
+     * EXPLAIN QUERY PLAN on the same connection, so it only ever costs anything for statements
+     * that were slow already.
+     */
+    void maybeRecord(SQLiteDatabase database, String sql, String[] bindArgs, long nanos) {
+        if (!isSlow(nanos)) {
+            return;
+        }
+
+        Entry entry = new Entry(System.currentTimeMillis(), sql,
+                bindArgs == null ? 0 : bindArgs.length, nanos / 1000, explain(database, sql, bindArgs));
+        synchronized (mEntries) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % mEntries.length;
+            mSize = Math.min(mSize + 1, mEntries.length);
+        }
+    }
+
+    /**
+     * Returns the logged statements, oldest first.
+     */
+    Entry[] getEntries() {
+        synchronized (mEntries) {
+            Entry[] entries = new Entry[mSize];
+            int first = (mNext - mSize + mEntries.length) % mEntries.length;
+            for (int i = 0; i < mSize; i++) {
+                entries[i] = mEntries[(first + i) % mEntries.length];
+            }
+            return entries;
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        long thresholdMillis = getThresholdMillis();
+        if (thresholdMillis < 0) {
+            writer.println("Slow queries: off");
+            return;
+        }
+
+        Entry[] entries = getEntries();
+        writer.printf("Slow queries over %d ms: %d%n", thresholdMillis, entries.length);
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (Entry entry : entries) {
+            writer.printf("  %s %d us, %d args: %s%n", format.format(new Date(entry.timeMillis)),
+                    entry.durationMicros, entry.bindArgCount, entry.sql);
+            for (String line : entry.plan.split("\n")) {
+                writer.println("    " + line);
+            }
+        }
+    }
+
+    /**
+     * Returns the EXPLAIN QUERY PLAN output of the given statement, one step per line.
+     */
+    private static String explain(SQLiteDatabase database, String sql, String[] bindArgs) {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, bindArgs);
+            int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+            StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (plan.length() != 0) {
+                    plan.append('\n');
+                }
+                plan.append(cursor.getString(detailColumnIndex));
+            }
+            return plan.toString();
+        } catch (SQLiteException e) {
+            return "No plan: " + e.getMessage();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
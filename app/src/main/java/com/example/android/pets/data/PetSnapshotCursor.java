@@ -0,0 +1,286 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only cursor over pets copied once into primitive arrays, one per column. Names and breeds
+ * are dictionary encoded: every distinct string is stored once and rows hold its index, so
+ * reading a row never allocates and the many pets sharing a breed share one String.
+ * <p>
+ * The copy is immutable, so any number of cursors can read it at once, see {@link #copy()}.
+ */
+final class PetSnapshotCursor extends AbstractCursor {
+
+    private static final int KIND_ID = 0;
+    private static final int KIND_NAME = 1;
+    private static final int KIND_BREED = 2;
+    private static final int KIND_GENDER = 3;
+    private static final int KIND_WEIGHT = 4;
+    private static final int KIND_PHOTO_UPDATED = 5;
+
+    /**
+     * Columns, in the order of their KIND_* value, a snapshot can hold
+     */
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN__PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO_UPDATED,
+    };
+
+    /**
+     * Dictionary code of a null string
+     */
+    private static final int NULL_CODE = -1;
+
+    /**
+     * The copied rows, shared by every cursor over the same snapshot.
+     */
+    private static final class Snapshot {
+        final int count;
+        final long[] ids;
+        final int[] nameCodes;
+        final int[] breedCodes;
+        final int[] genders;
+        final int[] weights;
+        final long[] photoUpdated;
+        final String[] dictionary;
+
+        Snapshot(int count, long[] ids, int[] nameCodes, int[] breedCodes, int[] genders,
+                 int[] weights, long[] photoUpdated, String[] dictionary) {
+            this.count = count;
+            this.ids = ids;
+            this.nameCodes = nameCodes;
+            this.breedCodes = breedCodes;
+            this.genders = genders;
+            this.weights = weights;
+            this.photoUpdated = photoUpdated;
+            this.dictionary = dictionary;
+        }
+    }
+
+    private final Snapshot mSnapshot;
+    private final String[] mColumnNames;
+
+    /**
+     * KIND_* value of each column of this cursor
+     */
+    private final int[] mColumnKinds;
+
+    private PetSnapshotCursor(Snapshot snapshot, String[] columnNames, int[] columnKinds) {
+        mSnapshot = snapshot;
+        mColumnNames = columnNames;
+        mColumnKinds = columnKinds;
+    }
+
+    /**
+     * Whether a snapshot can hold every column of the given projection. A null projection
+     * stands for all the pet columns.
+     */
+    static boolean supports(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (kindOf(column) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy every row of the given cursor, queried with a projection {@link #supports(String[])}
+     * accepts, into a new snapshot and close it. Does all the work up front, so call it off the
+     * main thread.
+     */
+    static PetSnapshotCursor fill(Cursor source) {
+        try {
+            String[] columnNames = source.getColumnNames();
+            int[] columnKinds = new int[columnNames.length];
+            int[] sourceColumns = new int[COLUMNS.length];
+            Arrays.fill(sourceColumns, -1);
+            for (int i = 0; i < columnNames.length; i++) {
+                columnKinds[i] = kindOf(columnNames[i]);
+                if (columnKinds[i] == -1) {
+                    throw new IllegalArgumentException("Cannot snapshot column " + columnNames[i]);
+                }
+                sourceColumns[columnKinds[i]] = i;
+            }
+
+            int count = source.getCount();
+            long[] ids = new long[count];
+            int[] nameCodes = new int[count];
+            int[] breedCodes = new int[count];
+            int[] genders = new int[count];
+            int[] weights = new int[count];
+            long[] photoUpdated = new long[count];
+            Map<String, Integer> codes = new HashMap<String, Integer>();
+
+            source.moveToPosition(-1);
+            for (int row = 0; source.moveToNext(); row++) {
+                ids[row] = readLong(source, sourceColumns[KIND_ID]);
+                nameCodes[row] = encode(codes, source, sourceColumns[KIND_NAME]);
+                breedCodes[row] = encode(codes, source, sourceColumns[KIND_BREED]);
+                genders[row] = (int) readLong(source, sourceColumns[KIND_GENDER]);
+                weights[row] = (int) readLong(source, sourceColumns[KIND_WEIGHT]);
+                photoUpdated[row] = readLong(source, sourceColumns[KIND_PHOTO_UPDATED]);
+            }
+
+            String[] dictionary = new String[codes.size()];
+            for (Map.Entry<String, Integer> code : codes.entrySet()) {
+                dictionary[code.getValue()] = code.getKey();
+            }
+
+            Snapshot snapshot = new Snapshot(count, ids, nameCodes, breedCodes, genders, weights,
+                    photoUpdated, dictionary);
+            return new PetSnapshotCursor(snapshot, columnNames, columnKinds);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Returns a new cursor, positioned before the first row, over the same snapshot.
+     */
+    PetSnapshotCursor copy() {
+        return new PetSnapshotCursor(mSnapshot, mColumnNames, mColumnKinds);
+    }
+
+    /**
+     * Approximate memory held by the snapshot, in bytes.
+     */
+    int getSizeBytes() {
+        int size = 64 + mSnapshot.count * (2 * 8 + 4 * 4);
+        for (String string : mSnapshot.dictionary) {
+            size += 40 + 2 * string.length();
+        }
+        return size;
+    }
+
+    private static int kindOf(String column) {
+        for (int kind = 0; kind < COLUMNS.length; kind++) {
+            if (COLUMNS[kind].equals(column)) {
+                return kind;
+            }
+        }
+        return -1;
+    }
+
+    private static long readLong(Cursor source, int column) {
+        return column == -1 ? 0 : source.getLong(column);
+    }
+
+    private static int encode(Map<String, Integer> codes, Cursor source, int column) {
+        if (column == -1 || source.isNull(column)) {
+            return NULL_CODE;
+        }
+        String value = source.getString(column);
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = codes.size();
+            codes.put(value, code);
+        }
+        return code;
+    }
+
+    @Override
+    public int getCount() {
+        return mSnapshot.count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        switch (mColumnKinds[column]) {
+            case KIND_NAME:
+            case KIND_BREED:
+                return isNull(column) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+            default:
+                return FIELD_TYPE_INTEGER;
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        switch (mColumnKinds[column]) {
+            case KIND_NAME:
+                return mSnapshot.nameCodes[mPos] == NULL_CODE;
+            case KIND_BREED:
+                return mSnapshot.breedCodes[mPos] == NULL_CODE;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String getString(int column) {
+        int code;
+        switch (mColumnKinds[column]) {
+            case KIND_NAME:
+                code = mSnapshot.nameCodes[mPos];
+                break;
+            case KIND_BREED:
+                code = mSnapshot.breedCodes[mPos];
+                break;
+            default:
+                return String.valueOf(getLong(column));
+        }
+        return code == NULL_CODE ? null : mSnapshot.dictionary[code];
+    }
+
+    @Override
+    public long getLong(int column) {
+        switch (mColumnKinds[column]) {
+            case KIND_ID:
+                return mSnapshot.ids[mPos];
+            case KIND_GENDER:
+                return mSnapshot.genders[mPos];
+            case KIND_WEIGHT:
+                return mSnapshot.weights[mPos];
+            case KIND_PHOTO_UPDATED:
+                return mSnapshot.photoUpdated[mPos];
+            default:
+                // Like SQLite, read text that isn't a number as 0
+                String value = getString(column);
+                try {
+                    return value == null ? 0 : Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+}
@@ -0,0 +1,312 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the trigrams, the runs of three characters, of every pet's name, used to find pets
+ * whose name is spelled almost like a given one.
+ * <p>
+ * SQLite can't split text into trigrams itself, so the provider indexes a pet's name here, in
+ * the same transaction that inserts or renames the pet. Deleted pets leave the index from a
+ * trigger, whichever way they were deleted.
+ * <p>
+ * A lookup only reads the postings of the name's rarest trigrams: a pet similar enough has to
+ * share so many of the name's trigrams that at least one of them is among the rarest. Its cost
+ * follows how common those trigrams are rather than how many pets there are. The candidates
+ * are then scored on their full name and breed.
+ */
+final class PetTrigramIndex {
+
+    /**
+     * One row per trigram of each pet's name
+     */
+    static final String TABLE_TRIGRAMS = "pet_name_trigrams";
+
+    /**
+     * Number of pets having each trigram, to tell the rare trigrams from the common ones
+     */
+    static final String TABLE_TRIGRAM_COUNTS = "pet_name_trigram_counts";
+
+    static final String COLUMN_TRIGRAM = "trigram";
+    static final String COLUMN_PET_ID = "pet_id";
+    static final String COLUMN_COUNT = "count";
+
+    static final String INDEX_TRIGRAMS = "pet_name_trigrams_idx";
+    static final String INDEX_TRIGRAMS_PET_ID = "pet_name_trigrams_pet_id_idx";
+
+    /**
+     * Lowest similarity, from 0 to 1, of the pets a lookup returns
+     */
+    static final double MIN_SIMILARITY = 0.6;
+
+    /**
+     * Weight of the breed in the similarity of two pets that both have a breed
+     */
+    private static final double BREED_WEIGHT = 0.2;
+
+    /**
+     * Most candidates scored per lookup, those sharing the most rare trigrams first
+     */
+    private static final int MAX_CANDIDATES = 200;
+
+    /**
+     * Characters of a name that count, which keeps the trigrams of a lookup well under
+     * SQLite's limit on bound arguments
+     */
+    private static final int MAX_TEXT_LENGTH = 200;
+
+    /**
+     * Statements that index a trigram of a pet's name, see
+     * {@link #add(SQLiteStatement, SQLiteStatement, SQLiteStatement, long, String)}
+     */
+    static final String SQL_INSERT_POSTING = "INSERT OR IGNORE INTO " + TABLE_TRIGRAMS +
+            " (" + COLUMN_TRIGRAM + ", " + COLUMN_PET_ID + ") VALUES (?, ?)";
+
+    static final String SQL_INSERT_COUNT = "INSERT OR IGNORE INTO " + TABLE_TRIGRAM_COUNTS +
+            " (" + COLUMN_TRIGRAM + ", " + COLUMN_COUNT + ") VALUES (?, 0)";
+
+    static final String SQL_INCREMENT_COUNT = "UPDATE " + TABLE_TRIGRAM_COUNTS +
+            " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT + " + 1 WHERE " + COLUMN_TRIGRAM + " = ?";
+
+    /**
+     * Columns of the cursor
+     * {@link #findSimilar(SQLiteDatabase, PetSlowQueryLog, String, String, int)} returns
+     */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN__PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_SIMILARITY,
+    };
+
+    private PetTrigramIndex() {
+    }
+
+    /**
+     * Returns the trigrams of the given text. Case and punctuation are ignored, and every word
+     * is padded with two spaces in front and one behind, so short words still have trigrams and
+     * their first letters weigh more than the rest. Only the first MAX_TEXT_LENGTH characters
+     * count.
+     */
+    static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<String>();
+        if (text == null) {
+            return trigrams;
+        }
+        if (text.length() > MAX_TEXT_LENGTH) {
+            text = text.substring(0, MAX_TEXT_LENGTH);
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * Dice coefficient of two sets of trigrams: 1 when they are the same, 0 when they have
+     * nothing in common.
+     */
+    static double similarity(Set<String> a, Set<String> b) {
+        if (a.isEmpty() && b.isEmpty()) {
+            return 1;
+        }
+        int shared = 0;
+        for (String trigram : a) {
+            if (b.contains(trigram)) {
+                shared++;
+            }
+        }
+        return 2.0 * shared / (a.size() + b.size());
+    }
+
+    /**
+     * Index the trigrams of the given name as those of the pet with the given ID, through
+     * compiled statements of SQL_INSERT_POSTING, SQL_INSERT_COUNT and SQL_INCREMENT_COUNT.
+     * Call inside the transaction that inserts the pet.
+     */
+    static void add(SQLiteStatement insertPosting, SQLiteStatement insertCount,
+                    SQLiteStatement incrementCount, long id, String name) {
+        for (String trigram : trigrams(name)) {
+            insertPosting.bindString(1, trigram);
+            insertPosting.bindLong(2, id);
+            insertPosting.executeInsert();
+            insertCount.bindString(1, trigram);
+            insertCount.executeInsert();
+            incrementCount.bindString(1, trigram);
+            incrementCount.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Take the pet with the given ID out of the index, through compiled statements of
+     * {@link #removeStatements(String)} for the ID "?". Call inside the transaction that renames
+     * the pet, before adding its new name.
+     */
+    static void remove(SQLiteStatement[] statements, long id) {
+        for (SQLiteStatement statement : statements) {
+            statement.bindLong(1, id);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Returns the statements that take a pet out of the index, given its ID as SQL, each using
+     * it once. The delete trigger on the pets table runs the same statements for old._id.
+     */
+    static String[] removeStatements(String id) {
+        String petTrigrams = " IN (SELECT " + COLUMN_TRIGRAM + " FROM " + TABLE_TRIGRAMS +
+                " WHERE " + COLUMN_PET_ID + " = " + id + ")";
+        return new String[]{
+                "UPDATE " + TABLE_TRIGRAM_COUNTS + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT +
+                        " - 1 WHERE " + COLUMN_TRIGRAM + petTrigrams,
+                "DELETE FROM " + TABLE_TRIGRAM_COUNTS + " WHERE " + COLUMN_COUNT + " <= 0 AND " +
+                        COLUMN_TRIGRAM + petTrigrams,
+                "DELETE FROM " + TABLE_TRIGRAMS + " WHERE " + COLUMN_PET_ID + " = " + id,
+        };
+    }
+
+    /**
+     * Find the pets most similar to a pet of the given name and breed, most similar first,
+     * leaving out any whose name's similarity is under {@link #MIN_SIMILARITY}. The name counts
+     * for most of the similarity, the breed only when both pets have one. The lookup's queries
+     * go through the given slow query log.
+     */
+    static Cursor findSimilar(SQLiteDatabase db, PetSlowQueryLog log, String name, String breed,
+                              int limit) {
+        MatrixCursor result = new MatrixCursor(COLUMNS);
+        final Set<String> nameTrigrams = trigrams(name);
+        if (nameTrigrams.isEmpty() || limit <= 0) {
+            return result;
+        }
+
+        // Fewest trigrams a pet's name must share with the name to reach MIN_SIMILARITY
+        int minShared = (int) Math.ceil(MIN_SIMILARITY * nameTrigrams.size() / (2 - MIN_SIMILARITY));
+        List<String> rarest = rarestTrigrams(db, log, nameTrigrams,
+                nameTrigrams.size() - Math.max(1, minShared) + 1);
+
+        List<Long> candidates = findCandidates(db, log, rarest);
+        if (candidates.isEmpty()) {
+            return result;
+        }
+
+        final Set<String> breedTrigrams = trigrams(breed);
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        Cursor pets = log.query(db, "SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", " +
+                PetEntry.COLUMN__PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+                PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                PetEntry._ID + " IN (" + TextUtils.join(",", candidates) + ")", null);
+        try {
+            while (pets.moveToNext()) {
+                double similarity = similarity(nameTrigrams, trigrams(pets.getString(1)));
+                if (similarity < MIN_SIMILARITY) {
+                    continue;
+                }
+                String petBreed = pets.getString(2);
+                if (!breedTrigrams.isEmpty() && !TextUtils.isEmpty(petBreed)) {
+                    similarity = (1 - BREED_WEIGHT) * similarity
+                            + BREED_WEIGHT * similarity(breedTrigrams, trigrams(petBreed));
+                }
+                rows.add(new Object[]{pets.getLong(0), pets.getString(1), petBreed,
+                        pets.getInt(3), pets.getInt(4), similarity});
+            }
+        } finally {
+            pets.close();
+        }
+
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return Double.compare((Double) b[5], (Double) a[5]);
+            }
+        });
+        for (int i = 0; i < rows.size() && i < limit; i++) {
+            result.addRow(rows.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given number of the given trigrams that the fewest pets have.
+     */
+    private static List<String> rarestTrigrams(SQLiteDatabase db, PetSlowQueryLog log,
+                                               Set<String> trigrams, int count) {
+        String[] args = trigrams.toArray(new String[trigrams.size()]);
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        Cursor cursor = log.query(db, "SELECT " + COLUMN_TRIGRAM + ", " + COLUMN_COUNT + " FROM " +
+                TABLE_TRIGRAM_COUNTS + " WHERE " + COLUMN_TRIGRAM + " IN (" +
+                placeholders(args.length) + ")", args);
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<String> sorted = new ArrayList<String>(Arrays.asList(args));
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                Long countA = counts.get(a);
+                Long countB = counts.get(b);
+                long difference = (countA == null ? 0 : countA) - (countB == null ? 0 : countB);
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    /**
+     * Returns the IDs of the pets having any of the given trigrams, those having the most of
+     * them first.
+     */
+    private static List<Long> findCandidates(SQLiteDatabase db, PetSlowQueryLog log,
+                                             List<String> trigrams) {
+        String[] args = trigrams.toArray(new String[trigrams.size()]);
+        Cursor cursor = log.query(db, "SELECT " + COLUMN_PET_ID + " FROM " + TABLE_TRIGRAMS +
+                " WHERE " + COLUMN_TRIGRAM + " IN (" + placeholders(args.length) + ")" +
+                " GROUP BY " + COLUMN_PET_ID + " ORDER BY COUNT(*) DESC LIMIT " + MAX_CANDIDATES, args);
+        try {
+            List<Long> ids = new ArrayList<Long>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        return placeholders.toString();
+    }
+}
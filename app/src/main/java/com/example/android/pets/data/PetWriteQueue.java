@@ -0,0 +1,467 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Funnels pet writes from any number of threads into one writer thread, which commits them in
+ * groups. Every write queued while a group commits goes into the next group, so concurrent
+ * writers share one transaction, one lock and one sync of the journal instead of taking turns
+ * for each row.
+ * <p>
+ * A group closes when it holds the maximum number of writes, or once the maximum delay has
+ * passed since its first write, so no write waits longer than that for its group to start
+ * committing. Each write runs inside a savepoint of the group's transaction: a write that fails
+ * is undone in full, reported on its own future, and doesn't stop the rest of its group.
+ */
+final class PetWriteQueue {
+
+    private static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    /**
+     * Told about the pets each group changed, once the group has been committed and before
+     * the results of its writes are settled.
+     */
+    interface Callback {
+        void onGroupCommitted(Collection<Uri> changedUris);
+    }
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * Result of one write, settled by the writer thread once the write's group has committed.
+     */
+    static class Result<T> extends FutureTask<T> {
+
+        Result() {
+            super(NO_OP, null);
+        }
+
+        void succeed(T value) {
+            set(value);
+        }
+
+        void fail(Throwable error) {
+            setException(error);
+        }
+    }
+
+    /**
+     * Returns a result that is already settled with the given value.
+     */
+    static <T> Future<T> done(T value) {
+        Result<T> result = new Result<T>();
+        result.succeed(value);
+        return result;
+    }
+
+    /**
+     * A queued write, holding its own copy of the caller's record.
+     */
+    private abstract static class Write<T> extends Result<T> {
+
+        final PetRecord mRecord;
+        private T mValue;
+        private RuntimeException mError;
+
+        Write(PetRecord record) {
+            mRecord = record;
+        }
+
+        /**
+         * Run the write inside the group's transaction, keeping its outcome until the group
+         * has committed.
+         */
+        void apply(PetRecordWriter writer, Savepoint savepoint) {
+            savepoint.begin();
+            try {
+                mValue = write(writer);
+                savepoint.release();
+            } catch (RuntimeException e) {
+                // Undo every part of the write, the row and its trigrams alike, so nothing of
+                // it commits with the rest of the group
+                savepoint.rollBack();
+                mError = e;
+            }
+        }
+
+        abstract T write(PetRecordWriter writer);
+
+        /**
+         * URI of the pets a write with the given outcome changed, or null if it changed none.
+         */
+        abstract Uri changedUri(T value);
+
+        Uri changedUri() {
+            return mError == null ? changedUri(mValue) : null;
+        }
+
+        void settle() {
+            if (mError instanceof SQLException) {
+                settleRejected((SQLException) mError);
+            } else if (mError != null) {
+                fail(mError);
+            } else {
+                succeed(mValue);
+            }
+        }
+
+        /**
+         * Settle the result of a write SQLite rejected, which has been undone. Fails it unless
+         * overridden.
+         */
+        void settleRejected(SQLException e) {
+            fail(e);
+        }
+    }
+
+    private static final class Insert extends Write<Uri> {
+
+        Insert(PetRecord record) {
+            super(record);
+        }
+
+        @Override
+        Uri write(PetRecordWriter writer) {
+            return ContentUris.withAppendedId(PetEntry.CONTENT_URI, writer.insert(mRecord));
+        }
+
+        @Override
+        void settleRejected(SQLException e) {
+            // Reported as null like PetProvider.insert(PetRecord)
+            Log.e(LOG_TAG, "Failed to insert pet", e);
+            succeed(null);
+        }
+
+        @Override
+        Uri changedUri(Uri value) {
+            return PetEntry.CONTENT_URI;
+        }
+    }
+
+    private static final class Update extends Write<Integer> {
+
+        private final long mId;
+
+        Update(long id, PetRecord record) {
+            super(record);
+            mId = id;
+        }
+
+        @Override
+        Integer write(PetRecordWriter writer) {
+            return writer.update(mId, mRecord);
+        }
+
+        @Override
+        Uri changedUri(Integer rows) {
+            return rows == 0 ? null : ContentUris.withAppendedId(PetEntry.CONTENT_URI, mId);
+        }
+    }
+
+    /**
+     * The savepoint each write of a group runs in, compiled once per group. The writer thread
+     * is its only user.
+     */
+    private static final class Savepoint {
+
+        private final SQLiteStatement mBegin;
+        private final SQLiteStatement mRelease;
+        private final SQLiteStatement mRollBack;
+
+        Savepoint(SQLiteDatabase database) {
+            mBegin = database.compileStatement("SAVEPOINT pet_write");
+            mRelease = database.compileStatement("RELEASE pet_write");
+            // The leading semicolon keeps SQLiteSession from taking the statement for a
+            // ROLLBACK of the whole transaction, as it does before API 28
+            mRollBack = database.compileStatement(";ROLLBACK TO pet_write");
+        }
+
+        void begin() {
+            mBegin.execute();
+        }
+
+        void release() {
+            mRelease.execute();
+        }
+
+        /**
+         * Undo everything since {@link #begin()}, then end the savepoint.
+         */
+        void rollBack() {
+            mRollBack.execute();
+            mRelease.execute();
+        }
+
+        void close() {
+            mBegin.close();
+            mRelease.close();
+            mRollBack.close();
+        }
+    }
+
+    /**
+     * Marks the end of the queue, see {@link #close()}
+     */
+    private static final Write<Void> END = new Write<Void>(null) {
+        @Override
+        Void write(PetRecordWriter writer) {
+            return null;
+        }
+
+        @Override
+        Uri changedUri(Void value) {
+            return null;
+        }
+    };
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final PetRecordWriter mRecordWriter;
+    private final Callback mCallback;
+    private final int mMaxGroupSize;
+    private final long mMaxDelayNanos;
+
+    private final BlockingQueue<Write<?>> mPending = new LinkedBlockingQueue<Write<?>>();
+    private final Thread mThread;
+    private boolean mClosed;
+
+    private final AtomicLong mGroups = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+
+    /**
+     * @param maxGroupSize most writes committed in one transaction
+     * @param maxDelayMillis longest a group stays open for more writes after its first one,
+     *                       0 to commit whatever is queued straight away
+     */
+    PetWriteQueue(SQLiteOpenHelper dbHelper, PetRecordWriter recordWriter, Callback callback,
+                  int maxGroupSize, int maxDelayMillis) {
+        if (maxGroupSize < 1) {
+            throw new IllegalArgumentException("Invalid group size " + maxGroupSize);
+        }
+        mDbHelper = dbHelper;
+        mRecordWriter = recordWriter;
+        mCallback = callback;
+        mMaxGroupSize = maxGroupSize;
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "PetWriteQueue");
+        mThread.start();
+    }
+
+    /**
+     * Queue the insertion of the given pet. The future holds the new pet's URI, or null if
+     * SQLite rejected the row. The record may be reused as soon as this returns.
+     *
+     * @throws IllegalArgumentException if the record is not a valid new pet
+     */
+    Future<Uri> insert(PetRecord record) {
+        record.validateForInsert();
+        return enqueue(new Insert(record.copy()));
+    }
+
+    /**
+     * Queue an update of the given pet with the fields set on the given record. The future
+     * holds the number of rows updated. The record may be reused as soon as this returns.
+     *
+     * @throws IllegalArgumentException if a field would make the pet invalid
+     */
+    Future<Integer> update(long id, PetRecord record) {
+        record.validateForUpdate();
+        return enqueue(new Update(id, record.copy()));
+    }
+
+    private <T> Future<T> enqueue(Write<T> write) {
+        synchronized (mPending) {
+            if (mClosed) {
+                throw new IllegalStateException("Write queue is closed");
+            }
+            mPending.add(write);
+        }
+        return write;
+    }
+
+    /**
+     * Commit every write queued so far, then stop the writer thread. Writes can't be queued
+     * any more once this has been called.
+     */
+    void close() {
+        synchronized (mPending) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mPending.add(END);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getGroupCount() {
+        return mGroups.get();
+    }
+
+    long getWriteCount() {
+        return mWrites.get();
+    }
+
+    void dump(PrintWriter writer) {
+        long groups = mGroups.get();
+        long writes = mWrites.get();
+        writer.printf("Write queue: %d writes in %d groups, %.1f per group, %d pending%n",
+                writes, groups, groups == 0 ? 0.0 : (double) writes / groups, mPending.size());
+    }
+
+    /**
+     * Body of the writer thread.
+     */
+    private void drain() {
+        List<Write<?>> group = new ArrayList<Write<?>>(mMaxGroupSize);
+        boolean ended = false;
+        while (!ended) {
+            Write<?> write = takeUninterruptibly();
+            // The delay counts from the group's first write, however many follow it
+            long deadline = System.nanoTime() + mMaxDelayNanos;
+            while (write != null) {
+                if (write == END) {
+                    ended = true;
+                    break;
+                }
+                group.add(write);
+                write = group.size() < mMaxGroupSize ? next(deadline) : null;
+            }
+
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the next queued write, waiting for one until the given System.nanoTime()
+     * deadline, or null if none arrived in time.
+     */
+    private Write<?> next(long deadline) {
+        Write<?> write = mPending.poll();
+        long remaining = deadline - System.nanoTime();
+        if (write != null || remaining <= 0) {
+            return write;
+        }
+        try {
+            return mPending.poll(remaining, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    private Write<?> takeUninterruptibly() {
+        while (true) {
+            try {
+                return mPending.take();
+            } catch (InterruptedException e) {
+                // Only close() stops the writer
+            }
+        }
+    }
+
+    /**
+     * Run the given writes in one transaction, then report the pets they changed and settle
+     * their results.
+     */
+    private void commit(List<Write<?>> group) {
+        RuntimeException failure = null;
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                Savepoint savepoint = new Savepoint(database);
+                try {
+                    for (Write<?> write : group) {
+                        write.apply(mRecordWriter, savepoint);
+                    }
+                } finally {
+                    savepoint.close();
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to commit " + group.size() + " writes", e);
+            failure = e;
+        }
+
+        if (failure != null) {
+            for (Write<?> write : group) {
+                write.fail(failure);
+            }
+            mGroups.incrementAndGet();
+            mWrites.addAndGet(group.size());
+            return;
+        }
+
+        // Report the changes before settling any result, so a caller that queries straight
+        // after its write never gets a result cached from before it
+        Set<Uri> changedUris = new LinkedHashSet<Uri>();
+        for (Write<?> write : group) {
+            Uri changedUri = write.changedUri();
+            if (changedUri != null) {
+                changedUris.add(changedUri);
+            }
+        }
+        if (!changedUris.isEmpty()) {
+            try {
+                mCallback.onGroupCommitted(changedUris);
+            } catch (RuntimeException e) {
+                // The writes are committed, their callers still need to be told
+                Log.e(LOG_TAG, "Failed to report committed writes", e);
+            }
+        }
+
+        for (Write<?> write : group) {
+            write.settle();
+        }
+        mGroups.incrementAndGet();
+        mWrites.addAndGet(group.size());
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.ImportEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs each step of {@link PetDbHelper}'s migrations on a database that went through all the
+ * steps before it, holding a few pets from version 1, and checks the schema it leaves behind.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetDbHelperMigrationTest {
+
+    private SQLiteDatabase mDb;
+
+    @After
+    public void tearDown() {
+        if (mDb != null) {
+            mDb.close();
+        }
+    }
+
+    @Test
+    public void migrate1To2_addsNameBreedIndex() {
+        upgradeTo(2);
+
+        assertIndex(PetDbHelper.INDEX_PETS_NAME_BREED,
+                PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN__PET_BREED);
+    }
+
+    @Test
+    public void migrate2To3_addsGenderWeightIndex() {
+        upgradeTo(3);
+
+        assertIndex(PetDbHelper.INDEX_PETS_GENDER_WEIGHT,
+                PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT);
+    }
+
+    @Test
+    public void migrate3To4_addsFullTextIndexKeptInSync() {
+        upgradeTo(4);
+
+        assertTrue(exists("table", PetEntry.FTS_TABLE_NAME));
+        assertTrue(exists("trigger", "pets_fts_insert"));
+        assertTrue(exists("trigger", "pets_fts_update"));
+        assertTrue(exists("trigger", "pets_fts_delete"));
+        assertEquals(3, count("SELECT COUNT(*) FROM " + PetEntry.FTS_TABLE_NAME));
+
+        insertPet("Tom", "Siamese", 1, 5);
+        mDb.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_NAME +
+                " = 'Felix' WHERE " + PetEntry.COLUMN_PET_NAME + " = 'Binx'");
+        mDb.execSQL("DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                PetEntry.COLUMN_PET_NAME + " = 'Toto'");
+        assertEquals(1, countMatches("tom"));
+        assertEquals(1, countMatches("felix"));
+        assertEquals(0, countMatches("binx"));
+        assertEquals(0, countMatches("toto"));
+    }
+
+    @Test
+    public void migrate4To5_replacesNameBreedIndexWithCatalogIndex() {
+        upgradeTo(5);
+
+        assertFalse(exists("index", PetDbHelper.INDEX_PETS_NAME_BREED));
+        assertIndex(PetDbHelper.INDEX_PETS_CATALOG, PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN__PET_BREED, PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT);
+    }
+
+    @Test
+    public void migrate5To6_addsRollupsBackfilledAndKeptInSync() {
+        upgradeTo(6);
+
+        assertTrue(exists("trigger", "pets_stats_insert"));
+        assertTrue(exists("trigger", "pets_stats_delete"));
+        assertTrue(exists("trigger", "pets_stats_update_gender"));
+        assertTrue(exists("trigger", "pets_stats_update_breed"));
+        assertTrue(exists("trigger", "pets_stats_update_weight"));
+        assertEquals(3, count("SELECT " + PetDbHelper.COLUMN_PET_COUNT + " FROM " + PetDbHelper.TABLE_TOTALS));
+        assertEquals(23, count("SELECT " + PetDbHelper.COLUMN_WEIGHT_SUM + " FROM " + PetDbHelper.TABLE_TOTALS));
+        assertEquals(2, count("SELECT " + PetDbHelper.COLUMN_COUNT + " FROM " +
+                PetDbHelper.TABLE_GENDER_COUNTS + " WHERE " + PetEntry.COLUMN_PET_GENDER + " = 1"));
+        assertEquals(1, count("SELECT " + PetDbHelper.COLUMN_COUNT + " FROM " +
+                PetDbHelper.TABLE_BREED_COUNTS + " WHERE " + PetEntry.COLUMN__PET_BREED + " = ''"));
+
+        insertPet("Tom", "Terrier", 2, 5);
+        mDb.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_WEIGHT +
+                " = 10 WHERE " + PetEntry.COLUMN_PET_NAME + " = 'Binx'");
+        mDb.execSQL("DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                PetEntry.COLUMN_PET_NAME + " = 'Garfield'");
+        assertEquals(3, count("SELECT " + PetDbHelper.COLUMN_PET_COUNT + " FROM " + PetDbHelper.TABLE_TOTALS));
+        assertEquals(22, count("SELECT " + PetDbHelper.COLUMN_WEIGHT_SUM + " FROM " + PetDbHelper.TABLE_TOTALS));
+        assertEquals(2, count("SELECT " + PetDbHelper.COLUMN_COUNT + " FROM " +
+                PetDbHelper.TABLE_BREED_COUNTS + " WHERE " + PetEntry.COLUMN__PET_BREED + " = 'Terrier'"));
+        assertEquals(10, count("SELECT MAX(" + PetEntry.COLUMN_PET_WEIGHT + ") FROM " +
+                PetDbHelper.TABLE_WEIGHT_COUNTS));
+    }
+
+    @Test
+    public void migrate6To7_addsWeightIndex() {
+        upgradeTo(7);
+
+        assertIndex(PetDbHelper.INDEX_PETS_WEIGHT, PetEntry.COLUMN_PET_WEIGHT);
+    }
+
+    @Test
+    public void migrate7To8_addsChangeLogWrittenByTriggers() {
+        upgradeTo(8);
+
+        assertIndex(PetDbHelper.INDEX_PET_CHANGES_PET_ID, ChangeEntry.COLUMN_PET_ID);
+        assertTrue(exists("trigger", "pets_changes_insert"));
+        assertTrue(exists("trigger", "pets_changes_update"));
+        assertTrue(exists("trigger", "pets_changes_delete"));
+        assertEquals(0, count("SELECT " + PetDbHelper.COLUMN_COMPACTED_SEQ + " FROM " +
+                PetDbHelper.TABLE_CHANGE_LOG));
+        assertEquals(0, count("SELECT COUNT(*) FROM " + ChangeEntry.TABLE_NAME));
+
+        long id = insertPet("Tom", null, 1, 5);
+        mDb.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_WEIGHT +
+                " = 6 WHERE " + PetEntry._ID + " = " + id);
+        mDb.execSQL("DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = " + id);
+        assertEquals(Arrays.asList((long) ChangeEntry.OP_INSERT, (long) ChangeEntry.OP_UPDATE,
+                (long) ChangeEntry.OP_DELETE), longs("SELECT " + ChangeEntry.COLUMN_OP + " FROM " +
+                ChangeEntry.TABLE_NAME + " WHERE " + ChangeEntry.COLUMN_PET_ID + " = " + id +
+                " ORDER BY " + ChangeEntry.COLUMN_SEQ));
+    }
+
+    @Test
+    public void migrate8To9_addsPhotoTimestampToCatalogIndexAndChangeLog() {
+        upgradeTo(9);
+
+        assertTrue(columns(PetEntry.TABLE_NAME).contains(PetEntry.COLUMN_PET_PHOTO_UPDATED));
+        assertEquals(0, count("SELECT MAX(" + PetEntry.COLUMN_PET_PHOTO_UPDATED + ") FROM " +
+                PetEntry.TABLE_NAME));
+        assertIndex(PetDbHelper.INDEX_PETS_CATALOG, PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN__PET_BREED, PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_PHOTO_UPDATED);
+        assertTrue(columns(ChangeEntry.TABLE_NAME).contains(PetEntry.COLUMN_PET_PHOTO_UPDATED));
+
+        long id = insertPet("Tom", null, 1, 5);
+        mDb.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_PHOTO_UPDATED +
+                " = 1234 WHERE " + PetEntry._ID + " = " + id);
+        assertEquals(Arrays.asList(0L, 1234L), longs("SELECT " + PetEntry.COLUMN_PET_PHOTO_UPDATED +
+                " FROM " + ChangeEntry.TABLE_NAME + " WHERE " + ChangeEntry.COLUMN_PET_ID + " = " + id +
+                " ORDER BY " + ChangeEntry.COLUMN_SEQ));
+    }
+
+    @Test
+    public void migrate9To10_addsTrigramIndexOfExistingNames() {
+        upgradeTo(10);
+
+        assertIndex(PetTrigramIndex.INDEX_TRIGRAMS,
+                PetTrigramIndex.COLUMN_TRIGRAM, PetTrigramIndex.COLUMN_PET_ID);
+        assertIndex(PetTrigramIndex.INDEX_TRIGRAMS_PET_ID, PetTrigramIndex.COLUMN_PET_ID);
+        assertTrue(exists("trigger", "pets_trigrams_delete"));
+
+        long totoId = count("SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME +
+                " WHERE " + PetEntry.COLUMN_PET_NAME + " = 'Toto'");
+        assertEquals(PetTrigramIndex.trigrams("Toto").size(), count("SELECT COUNT(*) FROM " +
+                PetTrigramIndex.TABLE_TRIGRAMS + " WHERE " + PetTrigramIndex.COLUMN_PET_ID + " = " + totoId));
+        // Every name starts with a different letter
+        assertEquals(1, count("SELECT " + PetTrigramIndex.COLUMN_COUNT + " FROM " +
+                PetTrigramIndex.TABLE_TRIGRAM_COUNTS + " WHERE " + PetTrigramIndex.COLUMN_TRIGRAM + " = '  t'"));
+
+        mDb.execSQL("DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = " + totoId);
+        assertEquals(0, count("SELECT COUNT(*) FROM " + PetTrigramIndex.TABLE_TRIGRAMS +
+                " WHERE " + PetTrigramIndex.COLUMN_PET_ID + " = " + totoId));
+        assertEquals(0, count("SELECT COUNT(*) FROM " + PetTrigramIndex.TABLE_TRIGRAM_COUNTS +
+                " WHERE " + PetTrigramIndex.COLUMN_TRIGRAM + " = '  t'"));
+    }
+
+    @Test
+    public void migrate10To11_addsImportCheckpoints() {
+        upgradeTo(11);
+
+        assertEquals(Arrays.asList(ImportEntry.COLUMN_SOURCE, ImportEntry.COLUMN_RECORDS_DONE),
+                columns(ImportEntry.TABLE_NAME));
+        assertEquals(0, count("SELECT COUNT(*) FROM " + ImportEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void migrate_fromVersion1ToLatestKeepsEveryPet() {
+        upgradeTo(PetDbHelper.DATABASE_VERSION);
+
+        assertEquals(3, count("SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME));
+    }
+
+    /**
+     * Create a version 1 database holding three pets, take it through every migration up to
+     * the version before the given one, then run the migration to the given version.
+     */
+    private void upgradeTo(int version) {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(PetDbHelper.SQL_CREATE_PETS_TABLE);
+        insertPet("Toto", "Terrier", 1, 7);
+        insertPet("Binx", null, 0, 4);
+        insertPet("Garfield", "Tabby", 1, 12);
+
+        PetDbHelper.migrate(mDb, 1, version - 1);
+        PetDbHelper.migrate(mDb, version - 1, version);
+    }
+
+    private long insertPet(String name, String breed, int gender, int weight) {
+        mDb.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_NAME + ", " +
+                        PetEntry.COLUMN__PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+                        PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)",
+                new Object[]{name, breed, gender, weight});
+        return count("SELECT last_insert_rowid()");
+    }
+
+    private boolean exists(String type, String name) {
+        return count("SELECT COUNT(*) FROM sqlite_master WHERE type = '" + type +
+                "' AND name = '" + name + "'") == 1;
+    }
+
+    private void assertIndex(String index, String... columns) {
+        assertTrue("Missing index " + index, exists("index", index));
+        List<String> indexed = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery("PRAGMA index_info(" + index + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                indexed.add(cursor.getString(cursor.getColumnIndexOrThrow("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(Arrays.asList(columns), indexed);
+    }
+
+    private List<String> columns(String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndexOrThrow("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    private long countMatches(String word) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + PetEntry.FTS_TABLE_NAME +
+                " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH ?", new String[]{word});
+    }
+
+    private long count(String sql) {
+        return DatabaseUtils.longForQuery(mDb, sql, null);
+    }
+
+    private List<Long> longs(String sql) {
+        List<Long> values = new ArrayList<Long>();
+        Cursor cursor = mDb.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                values.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+}
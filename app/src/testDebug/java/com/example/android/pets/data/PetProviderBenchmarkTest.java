@@ -0,0 +1,46 @@
+package com.example.android.pets.data;
+
+import com.example.android.pets.BuildConfig;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+/**
+ * Runs the provider benchmark suite on the JVM under Robolectric, so it can track regressions
+ * on a CI host without a device. Skipped unless table sizes are given:
+ *
+ * <pre>
+ * ./gradlew testDebugUnitTest --tests '*PetProviderBenchmarkTest' \
+ *         -PbenchmarkSizes=1000,10000,100000,1000000 -PbenchmarkLabel=$(git rev-parse --short HEAD)
+ * </pre>
+ *
+ * Results are appended to app/build/benchmarks/provider.jsonl, in the same JSON lines as on a
+ * device. Robolectric runs the real SQLite, but the numbers only compare with other JVM runs on
+ * the same host.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetProviderBenchmarkTest {
+
+    @Test
+    public void providerSuite() throws Exception {
+        String sizes = System.getProperty("benchmark.sizes");
+        Assume.assumeTrue("No benchmark sizes given", sizes != null && sizes.length() != 0);
+
+        File results = new File(System.getProperty("benchmark.results", "build/benchmarks/provider.jsonl"));
+        File directory = results.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + directory);
+        }
+
+        PetBenchmarkRecorder recorder = new PetBenchmarkRecorder(results,
+                System.getProperty("benchmark.label"));
+        new PetProviderBenchmark(RuntimeEnvironment.application, recorder).run(sizes);
+    }
+}
@@ -0,0 +1,69 @@
+#!/bin/sh
+#
+# Measures cold starts of the catalog on the connected device or emulator, with the startup
+# warm-up of PetApplication on and then off. Needs a debug build installed, since the warm-up
+# is switched through the debug-only PetBenchmarkService.
+#
+# Usage: scripts/startup_benchmark.sh [runs] [label]
+#
+# Each cold start is printed as one JSON object per line, in the same shape as the lines of
+# PetBenchmarkService, followed by the median of each mode:
+#   total_time_ms     TotalTime reported by am start -W, process start to first frame
+#   fully_drawn_ms    "Fully drawn" time, process start to the first catalog page on screen,
+#                     or -1 if the device doesn't report it (before KitKat)
+#
+# For a systrace of one start, add -a com.example.android.pets to a systrace.py capture: the
+# PetProvider.onCreate, PetDbHelper.open, PetProvider.firstQuery, PetApplication.warmUp and
+# PetRecyclerAdapter.firstBind sections show where the time goes.
+
+set -e
+
+PACKAGE=com.example.android.pets
+ACTIVITY=$PACKAGE/.CatalogActivity
+RUNS=${1:-20}
+LABEL=${2:-$(git rev-parse --short HEAD 2>/dev/null || echo unknown)}
+RESULTS=$(mktemp)
+trap 'rm -f "$RESULTS"' EXIT
+
+for WARM_UP in true false; do
+    adb shell am startservice -n $PACKAGE/.data.PetBenchmarkService --ez warm_up $WARM_UP > /dev/null
+    sleep 2
+
+    RUN=1
+    while [ $RUN -le "$RUNS" ]; do
+        adb shell am force-stop $PACKAGE
+        sleep 1
+        adb logcat -c
+
+        TOTAL=$(adb shell am start -W -n $ACTIVITY | tr -d '\r' | awk '/^TotalTime:/ { print $2 }')
+        # The first page may show up a little after the first frame
+        sleep 3
+        FULLY_DRAWN=$(adb logcat -d -s ActivityManager:I | tr -d '\r' | awk -v activity="$ACTIVITY" '
+            index($0, "Fully drawn " activity ": +") {
+                time = substr($0, index($0, ": +") + 3)
+                sub(/ .*/, "", time)
+                ms = 0
+                if (time ~ /s[0-9]/) {
+                    ms = substr(time, 1, index(time, "s") - 1) * 1000
+                    time = substr(time, index(time, "s") + 1)
+                }
+                sub(/ms$/, "", time)
+                print ms + time
+                exit
+            }')
+
+        LINE="{\"suite\":\"startup\",\"benchmark\":\"cold_start\",\"label\":\"$LABEL\",\"params\":{\"warm_up\":$WARM_UP},\"run\":$RUN,\"total_time_ms\":${TOTAL:--1},\"fully_drawn_ms\":${FULLY_DRAWN:--1}}"
+        echo "$LINE"
+        echo "$WARM_UP ${TOTAL:--1} ${FULLY_DRAWN:--1}" >> "$RESULTS"
+        RUN=$((RUN + 1))
+    done
+done
+
+# Leave the app as it ships
+adb shell am startservice -n $PACKAGE/.data.PetBenchmarkService --ez warm_up true > /dev/null
+
+for WARM_UP in true false; do
+    TOTAL=$(awk -v w=$WARM_UP '$1 == w { print $2 }' "$RESULTS" | sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }')
+    FULLY_DRAWN=$(awk -v w=$WARM_UP '$1 == w { print $3 }' "$RESULTS" | sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }')
+    echo "warm_up=$WARM_UP median total_time_ms=$TOTAL fully_drawn_ms=$FULLY_DRAWN"
+done